@@ -4,15 +4,27 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import static android.support.v4.content.ContextCompat.getSystemService;
 
@@ -21,14 +33,26 @@ import static android.support.v4.content.ContextCompat.getSystemService;
  */
 
 public class DumpFragment extends Fragment implements NfcRF430Handler {
+    static final int PREVIEW = 0x4000; //Characters of the dump that we show.
+
     TextView dumptext;
+    TextView dumpstatus;
+    ProgressBar dumpprogress;
     Button dumpexportbutton;
+    Button dumpcancelbutton;
+
+    //The dump in progress, if any, and a way back to the UI thread.
+    CompletableFuture<Boolean> dump = null;
+    File dumpfile = null; //The last finished dump, which may be longer than what we show.
+    Handler ui = new Handler(Looper.getMainLooper());
 
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState){
         View v=inflater.inflate(R.layout.fragment_dump, container, false);
 
         dumptext=v.findViewById(R.id.dumptext);
+        dumpstatus=v.findViewById(R.id.dumpstatus);
+        dumpprogress=v.findViewById(R.id.dumpprogress);
         dumpexportbutton=v.findViewById(R.id.dumpexportbutton);
         dumpexportbutton.setOnClickListener(new View.OnClickListener(){
                 @Override
@@ -36,31 +60,177 @@ public class DumpFragment extends Fragment implements NfcRF430Handler {
                     // Gets a handle to the clipboard service.
                     ClipboardManager clipboard = (ClipboardManager)
                             view.getContext().getSystemService(Context.CLIPBOARD_SERVICE);
-                    // Make the clip.
-                    ClipData clip = ClipData.newPlainText("RF430FRL152H Dump", dumptext.getText());
+                    // Make the clip, of the whole dump rather than just what's shown.
+                    CharSequence text = dumptext.getText();
+                    try {
+                        if (dumpfile != null)
+                            text = readPreview(dumpfile, Integer.MAX_VALUE);
+                    } catch (IOException e) {
+                        Log.e("GoodV", "Unable to read " + dumpfile + ", exporting the preview.");
+                    }
+                    ClipData clip = ClipData.newPlainText("RF430FRL152H Dump", text);
                     // Set the clipboard's primary clip.
                     clipboard.setPrimaryClip(clip);
                 }
         });
+        dumpcancelbutton=v.findViewById(R.id.dumpcancelbutton);
+        dumpcancelbutton.setOnClickListener(new View.OnClickListener(){
+            @Override
+            public void onClick(View view){
+                if (dump != null)
+                    dump.cancel(true);
+            }
+        });
 
         return v;
     }
 
     @Override
-    public void tagTapped(NfcRF430 tag) {
+    public void onDestroyView() {
+        //Nobody is left to see the result.
+        if (dump != null)
+            dump.cancel(true);
+        super.onDestroyView();
+    }
+
+    @Override
+    public void tagTapped(final NfcRF430 tag) {
         Log.d("GoodV", "Tag tapped to dump.");
 
         /* The RF430 chips take a long while to dump.  We basically try to dump each section,
            assuming that illegal or unavailable sections will quickly fail and move on to the
            next.
+
+           All of this happens on the tag I/O thread, and only the progress and the finished
+           text come back to the UI thread.  If the tag slips away partway through, the next tap
+           of the same tag picks up where we left off.
          */
+        if (dump != null && !dump.isDone()) {
+            Log.d("GoodV", "Already dumping, so ignoring the tap.");
+            return;
+        }
+
+        final NfcRF430DumpSession session = NfcRF430DumpSession.get(tag);
+        final int total = session.length();
+        final int already = session.bytesDone();
+        final long start = SystemClock.elapsedRealtime();
+        dumpprogress.setMax(total);
+        dumpprogress.setProgress(already);
+        dumpprogress.setVisibility(View.VISIBLE);
+        dumpcancelbutton.setVisibility(View.VISIBLE);
+        dumpstatus.setText(already > 0 ? "Resuming, hold the tag still." : "Dumping, hold the tag still.");
 
+        tag.setProgressListener(new NfcRF430.ProgressListener() {
+            long lastupdate = 0;
 
-        //TODO -- Dumping would be a lot nicer as a background thread.
+            @Override
+            public void onProgress(final int bytes) {
+                //Updating the UI for every block would be wasteful, so we do it a few times a second.
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastupdate < 200)
+                    return;
+                lastupdate = now;
+                ui.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        showProgress(bytes, already, total, start);
+                    }
+                });
+            }
+        });
+
+        /* Formatting, hashing and saving run alongside the radio in NfcRF430DumpPipeline, so
+           when the last block arrives, all that's left is to show the file.
+         */
+        final NfcRF430DumpPipeline pipeline = new NfcRF430DumpPipeline(session);
+        final File file = new File(getContext().getFilesDir(),
+                "dump-" + GoodVUtil.byteArrayToHex(tag.tagid) + ".txt");
+        dump = NfcRF430Async.submit(tag, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                //The tag's state belongs to this thread, even when a cancel completes us early.
+                tag.resetTransceiveCount();
+                try {
+                    return pipeline.run(tag, file);
+                } finally {
+                    tag.setProgressListener(null);
+                    Log.d("GoodV", "Dump took " + tag.getTransceiveCount() + " frames.");
+                }
+            }
+        });
+        dump.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean finished, Throwable e) {
+                String text;
+                try {
+                    if (e == null && finished)
+                        text = readPreview(file, PREVIEW);
+                    else if (e == null)
+                        text = String.format("Tag lost with %d of %d bytes read.\n\nTap the same tag again to resume.",
+                                session.bytesDone(), total);
+                    else if (NfcRF430Async.isCancellation(e))
+                        text = "Dump cancelled.";
+                    else
+                        text = "Read error.";
+                } catch (IOException ex) {
+                    text = "Read error.";
+                }
+
+                final String result = text;
+                final String digest = pipeline.getSHA256();
+                final File saved = digest != null ? file : null;
+                final long elapsed = SystemClock.elapsedRealtime() - start;
+                ui.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isAdded())
+                            return;
+                        dumptext.setText(result);
+                        dumpfile = saved;
+                        dumpprogress.setVisibility(View.INVISIBLE);
+                        dumpcancelbutton.setVisibility(View.GONE);
+                        dumpstatus.setText(String.format("Finished in %.1f seconds.", elapsed / 1000.0)
+                                + (digest != null ? "\nSHA-256 " + digest : ""));
+                    }
+                });
+            }
+        });
+    }
+
+    /* A whole dump would put all of its text back in memory, which the pipeline went to some
+       trouble to avoid, so we only show the start of the file and say where the rest is.
+     */
+    static String readPreview(File file, int max) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII);
         try {
-            dumptext.setText(tag.dumpTITXT());
-        } catch (IOException e) {
-            dumptext.setText("Read error.");
+            char[] buf = new char[4096];
+            int n;
+            while (sb.length() < max && (n = in.read(buf, 0, Math.min(buf.length, max - sb.length()))) > 0)
+                sb.append(buf, 0, n);
+        } finally {
+            in.close();
         }
+
+        //TI-TXT is ASCII, so characters and bytes are the same.
+        if (file.length() > sb.length())
+            sb.append(String.format("\n...\n\n%d more bytes in %s", file.length() - sb.length(), file));
+        return sb.toString();
+    }
+
+    //! Shows progress with the rate and the estimated time remaining.
+    void showProgress(int bytes, int already, int total, long start) {
+        if (!isAdded())
+            return;
+
+        //The rate only counts this tap, but the progress includes what earlier taps read.
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        double rate = elapsed > 0 ? bytes * 1000.0 / elapsed : 0;
+        int done = Math.min(already + bytes, total);
+        String eta = rate > 0 ? String.format("%.0f s", (total - done) / rate) : "?";
+
+        dumpprogress.setProgress(done);
+        dumpstatus.setText(String.format("%d of %d bytes, %.0f bytes/s, %s left.",
+                done, total, rate, eta));
     }
 }
@@ -4,6 +4,8 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -13,6 +15,10 @@ import android.widget.Button;
 import android.widget.TextView;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 
 
 /* This fragment exists to show the tag info.
@@ -20,6 +26,7 @@ import java.io.IOException;
 
 public class EraseFragment extends Fragment implements NfcRF430Handler {
     TextView erasetext;
+    Handler ui = new Handler(Looper.getMainLooper());
 
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState){
@@ -31,20 +38,41 @@ public class EraseFragment extends Fragment implements NfcRF430Handler {
     }
 
     @Override
-    public void tagTapped(NfcRF430 tag) {
+    public void tagTapped(final NfcRF430 tag) {
         Log.d("GoodV", "Tag tapped to erase.");
-        try {
+        erasetext.setText("Erasing, hold the tag still.");
 
-            tag.erase();
-
-            //And finally we brag about it.
-            String info =
-                    "Successfully erased tag "+GoodVUtil.byteArrayToHex(tag.getSerialNumber())+" :))\n\n";
-
-            erasetext.setText(info);
-        }catch(IOException e){
-            erasetext.setText("Erase error.");
-            e.printStackTrace();
-        }
+        //Erasing is slow enough to freeze the UI, so it runs on the tag thread, followed by the serial.
+        NfcRF430Async async = new NfcRF430Async(tag);
+        CompletableFuture<Void> erase = async.eraseAsync();
+        CompletableFuture<byte[]> serial = NfcRF430Async.submit(tag, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return tag.getSerialNumber();
+            }
+        });
+        erase.thenCombine(serial, new BiFunction<Void, byte[], byte[]>() {
+            @Override
+            public byte[] apply(Void nothing, byte[] serial) {
+                return serial;
+            }
+        }).whenComplete(new BiConsumer<byte[], Throwable>() {
+            @Override
+            public void accept(byte[] serial, Throwable e) {
+                //And finally we brag about it.
+                final String info = e == null
+                        ? "Successfully erased tag " + GoodVUtil.byteArrayToHex(serial) + " :))\n\n"
+                        : "Erase error.";
+                if (e != null)
+                    Log.e("GoodV", "Erase failed.", NfcRF430Async.cause(e));
+                ui.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded())
+                            erasetext.setText(info);
+                    }
+                });
+            }
+        });
     }
 }
@@ -1,22 +1,62 @@
 package com.kk4vcz.goodv;
 
+import java.io.IOException;
+
 public class GoodVUtil {
+    //Table of hex digits, so that we needn't call String.format() for every byte.
+    static final char[] HEX = "0123456789abcdef".toCharArray();
 
     public static String byteArrayToHex(byte[] a) {
-        StringBuilder sb = new StringBuilder(a.length * 2);
-        for(byte b: a)
-            sb.append(String.format("%02x", b));
-        return sb.toString();
+        return byteArrayToHex(a, 0, a.length);
     }
     public static String byteArrayToHexExceptFirst(byte[] a) {
-        StringBuilder sb = new StringBuilder(a.length * 2 - 2);
-        int i=0;
-        for(byte b: a) {
-            if(i==0)
-                i+=1;
-            else
-                sb.append(String.format("%02x", b));
+        if (a.length == 0)
+            return "";
+        return byteArrayToHex(a, 1, a.length - 1);
+    }
+    public static String byteArrayToHex(byte[] a, int off, int len) {
+        char[] chars = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            chars[2 * i] = HEX[(a[off + i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[a[off + i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    //! Appends one byte as two hex digits.
+    public static void appendHex(Appendable out, byte b) throws IOException {
+        out.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    //! Value of a hex digit, or -1 if it isn't one.
+    public static int hexValue(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    //! Decodes a string of hex digits, ignoring whitespace between bytes.
+    public static byte[] hexToByteArray(CharSequence s) {
+        byte[] res = new byte[s.length() / 2];
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c))
+                continue;
+            int hi = hexValue(c);
+            int lo = i + 1 < s.length() ? hexValue(s.charAt(++i)) : -1;
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Bad hex at index " + i + " of " + s);
+            res[len++] = (byte) ((hi << 4) | lo);
         }
-        return sb.toString();
+        if (len == res.length)
+            return res;
+        byte[] trimmed = new byte[len];
+        System.arraycopy(res, 0, trimmed, 0, len);
+        return trimmed;
     }
 }
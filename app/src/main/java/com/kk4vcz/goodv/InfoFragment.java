@@ -4,6 +4,8 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -12,7 +14,10 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.function.BiConsumer;
 
 
 /* This fragment exists to show the tag info.
@@ -21,6 +26,7 @@ import java.io.IOException;
 public class InfoFragment extends Fragment implements NfcRF430Handler {
     TextView infotext;
     Button infoexportbutton;
+    Handler ui = new Handler(Looper.getMainLooper());
 
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState){
@@ -45,13 +51,38 @@ public class InfoFragment extends Fragment implements NfcRF430Handler {
     }
 
     @Override
-    public void tagTapped(NfcRF430 tag) {
+    public void tagTapped(final NfcRF430 tag) {
         Log.d("GoodV", "Tag tapped to grab info.");
+        infotext.setText("Reading, hold the tag still.");
+        final File dir = getContext().getFilesDir();
 
-        try {
-            infotext.setText(tag.getInfo());
-        }catch(IOException e){
-            infotext.setText("Read error.");
-        }
+        //The info comes from the tag thread, in the tag's session, and only the text comes back.
+        NfcRF430Async.submit(tag, new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                String info = tag.getInfo();
+
+                //Glucose sensors also get their new readings added to the time series.
+                if (tag instanceof NfcRF430TAL) {
+                    NfcRF430CGMDecoder cgm = new NfcRF430CGMDecoder(dir);
+                    info += "CGM:      " + cgm.scan((NfcRF430TAL) tag).size() + " new records\n";
+                }
+
+                //Frame statistics follow the info, so that they're exported along with it.
+                return info + "\n" + NfcRF430Metrics.report();
+            }
+        }).whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String info, Throwable e) {
+                final String text = e == null ? info : "Read error.";
+                ui.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded())
+                            infotext.setText(text);
+                    }
+                });
+            }
+        });
     }
 }
@@ -25,6 +25,7 @@ import android.nfc.NdefMessage;
 import android.nfc.NfcAdapter;
 import android.widget.EditText;
 
+import java.io.File;
 import java.io.IOException;
 
 
@@ -54,6 +55,9 @@ public class MainActivity extends AppCompatActivity
         toggle.syncState();
         navigationView.setNavigationItemSelectedListener(this);
 
+        //Tags we've seen before needn't be probed again.
+        NfcRF430Profile.setFile(new File(getFilesDir(), "profiles.properties"));
+
         //Show the default fragment.
         setFragment();
     }
@@ -102,14 +106,23 @@ public class MainActivity extends AppCompatActivity
 
             //We only connect if there's a fragment waiting to handle it.
             if (handler != null) {
-                NfcRF430 rf430 = NfcRF430.get(mTag);//new NfcRF430(mTag);
+                final NfcRF430 rf430 = NfcRF430.get(mTag);//new NfcRF430(mTag);
+                NfcRF430Session session = NfcRF430Session.open(rf430);
                 try {
                     rf430.connect();
+                    //The session empties the cache before each operation, so it only saves frames within one.
+                    rf430.setCaching(true);
                     handler.tagTapped(rf430);
-                    rf430.close();
                 } catch (IOException e) {
                     Log.d("FAIL", "NFCV connection died before completion.");
+                    //Don't poll or hand out a tag that never connected.
+                    session.setLost();
                 }
+
+                /* Handlers may have queued slow work, like a dump, on the tag I/O thread, and
+                   that work may queue more.  The session closes the tag once it's all done.
+                 */
+                session.release();
             }
         }else{
             //Unknown action type.  Maybe we forgot to make a handler?
@@ -135,6 +148,21 @@ public class MainActivity extends AppCompatActivity
         //noinspection SimplifiableIfStatement
         if (id == R.id.action_settings) {
             return true;
+        } else if (id == R.id.action_trace) {
+            /* Traces go to the app's own external storage, where they can be pulled with adb
+               and replayed by NfcRF430TraceReplay.
+             */
+            item.setChecked(!item.isChecked());
+            File trace = new File(getExternalFilesDir(null), "goodv.trace");
+            NfcRF430TraceRecorder.setTraceFile(item.isChecked() ? trace : null);
+            Log.d("GoodV", (item.isChecked() ? "Recording traces to " : "Stopped recording ") + trace);
+            return true;
+        } else if (id == R.id.action_bulksram) {
+            //Fast SRAM reads upload a routine into the very SRAM that they read, so they're optional.
+            item.setChecked(!item.isChecked());
+            NfcRF430FRL.setBulkSRAMDefault(item.isChecked());
+            Log.d("GoodV", (item.isChecked() ? "Enabled" : "Disabled") + " bulk SRAM reads.");
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -175,6 +203,14 @@ public class MainActivity extends AppCompatActivity
 
         setFragment();
 
+        //A tag that's still in the field goes straight to the new fragment, without another tap.
+        NfcRF430Session session = NfcRF430Session.current();
+        if (handler != null && session != null && !session.isLost() && session.hold()) {
+            getSupportFragmentManager().executePendingTransactions();
+            handler.tagTapped(session.getTag());
+            session.release();
+        }
+
         DrawerLayout drawer = findViewById(R.id.drawer_layout);
         drawer.closeDrawer(GravityCompat.START);
         return true;
@@ -7,8 +7,16 @@ import android.nfc.tech.TagTechnology;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.StringTokenizer;
+import java.util.List;
 import java.util.stream.Stream;
 
 /* This is a convenient wrapper for the NfcV class that adds support for commands found in the
@@ -23,48 +31,83 @@ import java.util.stream.Stream;
  */
 
 public abstract class NfcRF430 implements TagTechnology {
-    Tag tag;
-    NfcV nfcv;
+    Tag tag; //Null when we aren't talking to a real tag.
+    NfcRF430Transport transport;
 
     byte[] tagid;
     int blocklen = 8; //8 bytes is default, but 4 can be supported by tag firmware.
     int page = 0; //in 4-byte mode, there are two pages.
+    int f867 = -1; //Last known value of the control register at F867, or -1 if unknown.
+    byte[] rawinfo = null; //System info reply of this session, once we have it.
+    volatile boolean lost = false; //Set when a frame fails with TagLostException.
     int baseadr = 0xF868; //F868 on stock ROM, F860 on CGM ROM.
     int blockcount = 0xF3; //0xF3 blocks on stock, 0xF4 on GCM.
+    int multireadlen = 0; //Max bytes per Read Multiple Blocks request, or 0 if unsupported.
+    int multiwritelen = 0; //Max bytes per Write Multiple Blocks request, or 0 if unsupported.
+    int transceivecount = 0; //Frames sent since the last reset, to measure our improvements.
+    boolean caching = false; //Optional cache of FRAM blocks for this session.
+    byte[][][] blockcache = new byte[2][0x100][]; //Indexed by page, then 8-bit block number.
+    int cachehits = 0, cachemisses = 0;
+    boolean diffprogramming = false; //Only write the blocks that differ from the tag's contents.
+    int skippedblocks = 0; //Blocks that differential programming didn't need to write.
+    boolean controlregister = true; //F867 exists on stock ROM, but not GCM ROM.
+    byte[] scratch = new byte[0x100]; //Partial blocks bounce through here.
+    byte[][] frames = new byte[0x100][]; //Reusable command frames, indexed by length.
+    volatile ProgressListener progresslistener = null; //Told of every block that read() fetches.
+    int progressbytes = 0; //Bytes fetched since the listener was set.
     String variant;
 
+    //! Hears about the progress of long reads, such as dumps.  Called on the I/O thread.
+    public interface ProgressListener {
+        void onProgress(int bytes);
+    }
+
     public NfcRF430(Tag tag) {
+        this(tag.getId(), new NfcVTransport(NfcV.get(tag)));
         this.tag = tag;
-        this.tagid = tag.getId();
-        this.nfcv = NfcV.get(this.tag);
     }
 
-    /* Use this function to get a non-abstract class that's right for your tag. */
+    //! Talks to a tag through any transport, such as a simulator.
+    public NfcRF430(byte[] tagid, NfcRF430Transport transport) {
+        this.tagid = tagid;
+        this.transport = transport;
+    }
+
+    /* Use this function to get a non-abstract class that's right for your tag.
+       The tag's frames are recorded if NfcRF430TraceRecorder has a trace file.
+     */
     public static NfcRF430 get(Tag tag) {
-        byte[] tagid = tag.getId();
+        NfcRF430Transport transport = new NfcVTransport(NfcV.get(tag));
+        NfcRF430 rf430 = get(tag.getId(), NfcRF430TraceRecorder.wrap(tag.getId(), transport));
+        rf430.tag = tag;
+        return rf430;
+    }
+
+    //! Same as above, but for a tag behind any transport.
+    public static NfcRF430 get(byte[] tagid, NfcRF430Transport transport) {
         switch (tagid[6]) {
             case 0x07: //Texas Instruments is our primary target.
                 switch (tagid[5]) {
                     case 0: //Tag-IT
                         Log.d("GoodV", "TAG-IT");
-                        return new NfcRF430TAGIT(tag);
+                        return new NfcRF430TAGIT(tagid, transport);
                     case (byte) 0xA2: //Stock ROM of RF430FRL152H.
                         Log.d("GoodV", "RF430FRL");
-                        return new NfcRF430FRL(tag);
+                        return new NfcRF430FRL(tagid, transport);
                     case (byte) 0xA0: //GCM ROM of the RF430TAL152H.
                         Log.d("GoodV", "RF430TAL");
-                        return new NfcRF430TAL(tag);
+                        return new NfcRF430TAL(tagid, transport);
                 }
 
             case 0x04: //NXP tags are the most common.
                 switch (tagid[5]) {
                     case 01: //Stand Label IC
-                        return new NfcRF430NXPIcodeSli(tag);
+                        return new NfcRF430NXPIcodeSli(tagid, transport);
                 }
         }
 
         //Unknown tag, so we hope for the best.
-        return new NfcRF430Generic(tag);
+        return new NfcRF430Generic(tagid, transport);
     }
 
     @Override
@@ -74,12 +117,18 @@ public abstract class NfcRF430 implements TagTechnology {
 
     @Override
     public void connect() throws IOException {
-        nfcv.connect();
+        transport.connect();
     }
 
     //! Reads the block length, among other things.
     public void readF867() throws IOException{
-        byte f867 = read(0xf867, 1)[0];
+        decodeF867(read(0xf867, 1)[0]);
+    }
+
+    //! Updates the block length and page from a new value of F867.
+    void decodeF867(byte f867) {
+        int oldblocklen = blocklen;
+        this.f867 = f867 & 0xFF;
 
         //RF430FRL152H tags can have either 8 byte or 4 byte blocks.
         if ((f867 & 1) == 1) {
@@ -90,6 +139,12 @@ public abstract class NfcRF430 implements TagTechnology {
             //Page bit is inverted.
             page = (((f867 >> 1) & 1) == 1) ? 0 : 1;
         }
+
+        /* Cached blocks are keyed by page, so they survive a page flip, but a new block length
+           changes the whole layout of the FRAM.
+         */
+        if (blocklen != oldblocklen)
+            invalidateCache();
     }
 
     @Override
@@ -97,21 +152,143 @@ public abstract class NfcRF430 implements TagTechnology {
         //Close on page 0 for 4-byte devices.
         if(blocklen==4 && variant.equals("FRL"))
             setPage(0);
-        nfcv.close();
+        transport.close();
     }
 
     @Override
     public boolean isConnected() {
-        return nfcv.isConnected();
+        return transport.isConnected();
+    }
+
+    //! Sets a listener for the progress of reads, or null for none.
+    public void setProgressListener(ProgressListener listener) {
+        progresslistener = listener;
+        progressbytes = 0;
     }
 
     /* These functions are the lowest level, directly communicating with the tag. */
 
     public byte[] transceive(byte[] data) throws IOException {
-        return nfcv.transceive(data);
+        try {
+            return transceiveFrame(data);
+        } catch (TagLostException e) {
+            //Remembered, because some callers, like a dump, quietly give up on a lost tag.
+            lost = true;
+            throw e;
+        }
+    }
+
+    byte[] transceiveFrame(byte[] data) throws IOException {
+        transceivecount++;
+        if (!NfcRF430Metrics.enabled)
+            return transport.transceive(data);
+
+        //Variants that identify themselves in connect() aren't named for the first frames.
+        String key = variant != null ? variant : "Unknown";
+        long start = System.nanoTime();
+        try {
+            byte[] res = transport.transceive(data);
+            NfcRF430Metrics.record(key, data, res, System.nanoTime() - start);
+            return res;
+        } catch (IOException e) {
+            NfcRF430Metrics.record(key, data, e, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    //! True once a frame has reported the tag lost.
+    public boolean isLost() {
+        return lost;
+    }
+
+    //! Checks that the tag is still in the field, at the cost of one frame.
+    public boolean isPresent() {
+        try {
+            //Any reply at all to the system info command will do.
+            transceive(new byte[]{0x02, (byte) 0x2b});
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            //NfcV throws IllegalStateException when it was never connected.
+            return false;
+        }
+    }
+
+    //! Number of frames sent to the tag since the last reset.
+    public int getTransceiveCount() {
+        return transceivecount;
+    }
+
+    //! Resets the frame counter, such as before a dump.
+    public void resetTransceiveCount() {
+        transceivecount = 0;
     }
 
 
+    /* The block cache saves us from fetching the same FRAM blocks over and over, such as when
+       an unaligned read() or write() fetches a neighboring block, or when getInfo() and
+       isJTAGLocked() both look at FFD0.  Only 8-bit FRAM blocks are cached, because SRAM and
+       the F867 register change behind our backs.  It's a flat table by page and block number,
+       so that a cache hit doesn't allocate anything.
+     */
+
+    //! Enables or disables the block cache for this session.
+    public void setCaching(boolean enabled) {
+        caching = enabled;
+        invalidateCache();
+    }
+
+    //! Forgets all cached blocks.
+    public void invalidateCache() {
+        for (byte[][] cachepage : blockcache)
+            Arrays.fill(cachepage, null);
+    }
+
+    public int getCacheHits() {
+        return cachehits;
+    }
+
+    public int getCacheMisses() {
+        return cachemisses;
+    }
+
+    //! True if an 8-bit block can be held in the cache.
+    boolean cacheable(int block) {
+        return caching && block >= 0 && block < 0xFF;
+    }
+
+    //! True if a block is already in the cache.  Doesn't count as a hit.
+    boolean cacheContains(int block) {
+        return cacheable(block) && blockcache[page][block] != null;
+    }
+
+    //! Copies a cached block into buf, returning false if we'll need to fetch it.
+    boolean cacheRead(int block, byte[] buf, int off) {
+        if (!cacheable(block))
+            return false;
+
+        byte[] data = blockcache[page][block];
+        if (data == null) {
+            cachemisses++;
+            return false;
+        }
+        cachehits++;
+        System.arraycopy(data, 0, buf, off, blocklen);
+        return true;
+    }
+
+    //! Stores a block that we've just read or written.
+    void cachePut(int block, byte[] data, int offset) {
+        if (!cacheable(block) || data.length - offset < blocklen)
+            return;
+
+        byte[] entry = blockcache[page][block];
+        if (entry == null || entry.length != blocklen)
+            entry = blockcache[page][block] = new byte[blocklen];
+        System.arraycopy(data, offset, entry, 0, blocklen);
+    }
+
     //! Converts an address to a 16-bit block.
     public int adr2block(int adr) {
         /* Different RF430 devices have different mappings of FRAM to blocks.
@@ -139,6 +316,20 @@ public abstract class NfcRF430 implements TagTechnology {
         }
     }
 
+    //! Returns a reusable command frame of exactly len bytes.
+    byte[] frame(int len) {
+        /* NfcV.transceive() sends the whole array, so we keep one frame for every length we've
+           needed.  There are only a handful of them, and none of them escape transceive().
+         */
+        if (frames[len] == null)
+            frames[len] = new byte[len];
+        return frames[len];
+    }
+
+    //! True when per-block log messages are wanted.  Enable with 'setprop log.tag.GoodV VERBOSE'.
+    static boolean verbose() {
+        return Log.isLoggable("GoodV", Log.VERBOSE);
+    }
 
 
     /* These functions are a bit higher level, implementing one command apiece. */
@@ -146,10 +337,18 @@ public abstract class NfcRF430 implements TagTechnology {
 
     //! Reads the system info.
     public byte[] getRawInfo() throws IOException {
+        //System info doesn't change while we hold the tag, so we only ask once.
+        if (rawinfo != null && rawInfoMatches(rawinfo))
+            return rawinfo.clone();
+
         byte[] res = transceive(new byte[]{
                 0x02,         // Flags
                 (byte) 0x2b,  // Standard Read Command
         });
+        if (res.length > 0 && res[0] == 0) {
+            rawinfo = res.clone();
+            rawInfoFetched(res);
+        }
 
         /* Example result:
              OK ?? Serial Number    ????
@@ -160,8 +359,23 @@ public abstract class NfcRF430 implements TagTechnology {
         return res;
     }
 
+    //! Called with a fresh system info reply, which the tag's profile keeps for next time.
+    void rawInfoFetched(byte[] res) throws IOException {
+        NfcRF430Profile.put(this);
+    }
+
+    //! False if a system info reply, such as one from a profile, disagrees with what we know.
+    boolean rawInfoMatches(byte[] res) {
+        return true;
+    }
+
     //! Reads the serial number.
     public byte[] getSerialNumber() throws IOException {
+        return getSerialNumber(getRawInfo());
+    }
+
+    //! Extracts the serial number from a reply to getRawInfo(), saving a frame.
+    public byte[] getSerialNumber(byte[] rawinfo) {
         /* Example result:
              OK ?? Serial Number    ????
              00 04 477a010000a207e0 f207
@@ -169,7 +383,7 @@ public abstract class NfcRF430 implements TagTechnology {
          */
 
         //Return the result.
-        byte[] revserial = Arrays.copyOfRange(getRawInfo(), 2, 2 + 8);
+        byte[] revserial = Arrays.copyOfRange(rawinfo, 2, 2 + 8);
 
 
         //Easiest to just hardcode the reversal.
@@ -190,53 +404,141 @@ public abstract class NfcRF430 implements TagTechnology {
 
     //! Reads a block with an 8-bit address.  Standard NFC-V command.
     public byte[] readBlock8(byte block) throws IOException {
-        Log.d("GoodV", "readBlock8(): NFC Read command for block 0x" + String.format("%02X", block));
-        byte[] res = transceive(new byte[]{
-                0x02,         // Flags
-                (byte) 0x20,  // Standard Read Command
-                block         // 8-bit block number
-        });
+        byte[] res = new byte[blocklen];
+        return readBlock8(block & 0xFF, res, 0) ? res : new byte[]{};
+    }
 
-        //Return just the bytes on success, or nothing on failure.
-        if (res[0] == 0)
-            return Arrays.copyOfRange(res, 1, res.length);
-        else
-            return new byte[]{};
+    //! Reads a block with an 8-bit address into buf.  Standard NFC-V command.
+    public boolean readBlock8(int block, byte[] buf, int off) throws IOException {
+        if (cacheRead(block, buf, off))
+            return true;
+
+        if (verbose())
+            Log.v("GoodV", "readBlock8(): NFC Read command for block 0x" + String.format("%02X", block));
+        byte[] cmd = frame(3);
+        cmd[0] = 0x02;          // Flags
+        cmd[1] = (byte) 0x20;   // Standard Read Command
+        cmd[2] = (byte) block;  // 8-bit block number
+        byte[] res = transceive(cmd);
+
+        //Copy just the bytes on success, or nothing on failure.
+        if (res[0] != 0 || res.length < 1 + blocklen)
+            return false;
+        System.arraycopy(res, 1, buf, off, blocklen);
+        cachePut(block, res, 1);
+        return true;
+    }
+
+    //! Reads count blocks from an 8-bit address.  Standard NFC-V command.
+    public byte[] readMultipleBlocks8(int block, int count) throws IOException {
+        byte[] res = new byte[count * blocklen];
+        return readMultipleBlocks8(block, count, res, 0) ? res : new byte[]{};
+    }
+
+    //! Reads count blocks from an 8-bit address into buf.  Standard NFC-V command.
+    public boolean readMultipleBlocks8(int block, int count, byte[] buf, int off) throws IOException {
+        if (verbose())
+            Log.v("GoodV", "readMultipleBlocks8(): NFC Read Multiple command for block 0x"
+                    + String.format("%02X", block) + " count=" + count);
+        byte[] cmd = frame(4);
+        cmd[0] = 0x02;                // Flags
+        cmd[1] = (byte) 0x23;         // Standard Read Multiple Command
+        cmd[2] = (byte) block;        // 8-bit first block number
+        cmd[3] = (byte) (count - 1);  // Number of blocks, minus one.
+        byte[] res = transceive(cmd);
+
+        //Copy just the bytes on success.
+        if (res.length == 1 + count * blocklen && res[0] == 0) {
+            System.arraycopy(res, 1, buf, off, count * blocklen);
+            for (int i = 0; i < count; i++)
+                cachePut(block + i, res, 1 + i * blocklen);
+            return true;
+        }
+
+        /* Error code 01 is an unsupported command and 02 is an unrecognized one.  Either way,
+           this tag won't ever do multiple reads for us, so we stop asking for the session.
+           Other errors, like a locked or missing block, only spoil this one request.
+         */
+        if (res.length > 1 && (res[0] & 1) == 1 && (res[1] == 0x01 || res[1] == 0x02)) {
+            Log.w("GoodV", "Tag rejected Read Multiple Blocks, falling back to single blocks.");
+            multireadlen = 0;
+        }
+        return false;
+    }
+
+    //! Number of blocks that one multiple block request of up to maxlen bytes can cover at adr.
+    int multiBlockCount(int adr, int len, int maxlen) {
+        //Single blocks when unsupported or when there's only one block to move.
+        if (maxlen < 2 * blocklen || len <= blocklen)
+            return 1;
+
+        //Only the 8-bit block numbers of FRAM are available to the standard commands.
+        if (adr < baseadr || adr >= 0x10000)
+            return 1;
+        int block = adr2block(adr);
+        if (block < 0 || block >= 0x100)
+            return 1;
+
+        int count = Math.min(maxlen / blocklen, (len + blocklen - 1) / blocklen);
+
+        //Never run past the last block, and in 4-byte mode never past the page boundary.
+        int end = (blocklen == 4 && adr < 0xFC34) ? 0xFC34 : 0x10000;
+        count = Math.min(count, (end - adr) / blocklen);
+        count = Math.min(count, blockcount - block);
+
+        return Math.max(count, 1);
+    }
+
+    //! Writes count blocks to an 8-bit address.  Standard NFC-V command.
+    public boolean writeMultipleBlocks8(int block, int count, byte[] data) throws IOException {
+        return writeMultipleBlocks8(block, count, data, 0);
+    }
+
+    //! Writes count blocks from data at off to an 8-bit address.  Standard NFC-V command.
+    public boolean writeMultipleBlocks8(int block, int count, byte[] data, int off) throws IOException {
+        if (verbose())
+            Log.v("GoodV", "writeMultipleBlocks8(): NFC Write Multiple command for block 0x"
+                    + String.format("%02X", block) + " count=" + count);
+        byte[] cmd = frame(4 + count * blocklen);
+        cmd[0] = 0x02;                // Flags
+        cmd[1] = (byte) 0x24;         // Standard Write Multiple Command
+        cmd[2] = (byte) block;        // 8-bit first block number
+        cmd[3] = (byte) (count - 1);  // Number of blocks, minus one.
+        System.arraycopy(data, off, cmd, 4, count * blocklen);
+
+        byte[] res = transceive(cmd);
+        if (res.length > 0 && res[0] == 0) {
+            for (int i = 0; i < count; i++)
+                cachePut(block + i, data, off + i * blocklen);
+            return true;
+        }
+
+        //As with reads, an unsupported command means we shouldn't try again this session.
+        if (res.length > 1 && (res[0] & 1) == 1 && (res[1] == 0x01 || res[1] == 0x02)) {
+            Log.w("GoodV", "Tag rejected Write Multiple Blocks, falling back to single blocks.");
+            multiwritelen = 0;
+        }
+        return false;
     }
 
     //! Writes a block with an 8-bit address.  Standard NFC-V command.
     public boolean writeBlock8(byte block, byte[] data) throws IOException {
-        byte[] res = new byte[]{1}; //Failure by default.
+        return writeBlock8(block & 0xFF, data, 0);
+    }
 
+    //! Writes a block from data at off to an 8-bit address.  Standard NFC-V command.
+    public boolean writeBlock8(int block, byte[] data, int off) throws IOException {
+        byte[] cmd = frame(3 + blocklen);
+        cmd[0] = 0x02;          // Flags.  (Docs say option must be set, but that fails for me.)
+        cmd[1] = (byte) 0x21;   // Standard Write Command
+        cmd[2] = (byte) block;  // 8-bit block number
+        System.arraycopy(data, off, cmd, 3, blocklen);
+        byte[] res = transceive(cmd);
 
-        if (blocklen == 8)
-            res=transceive(new byte[]{
-                    0x02,         // Flags.  (Docs say option must be set, but that fails for me.)
-                    (byte) 0x21,  // Standard Write Command
-                    block,         // 8-bit block number
-                    data[0],
-                    data[1],
-                    data[2],
-                    data[3],
-                    data[4],
-                    data[5],
-                    data[6],
-                    data[7]
-            });
-        else if (blocklen == 4)
-            res=transceive(new byte[]{
-                    0x02,         // Flags.  (Docs say option must be set, but that fails for me.)
-                    (byte) 0x21,  // Standard Write Command
-                    block,         // 8-bit block number
-                    data[0],
-                    data[1],
-                    data[2],
-                    data[3]
-            });
-
-
-        if (res[0] == 0)
+        if (res[0] == 0) {
+            cachePut(block, data, off);
             return true;
+        }
 
         Log.e("GoodV", String.format("Error writing block8 0x%02x", block));
         return false;
@@ -244,38 +546,22 @@ public abstract class NfcRF430 implements TagTechnology {
 
     //! Writes a block with a 16-bit address.  Custom vendor command.
     public boolean writeBlock16(int block, byte[] data) throws IOException {
-        if (block < 0x100)
-            return writeBlock8((byte) block, data);
-
+        return writeBlock16(block, data, 0);
+    }
 
-        byte[] res = new byte[]{1};
+    //! Writes a block from data at off to a 16-bit address.  Custom vendor command.
+    public boolean writeBlock16(int block, byte[] data, int off) throws IOException {
+        if (block < 0x100)
+            return writeBlock8(block, data, off);
 
-        if (blocklen == 8)
-            res=transceive(new byte[]{
-                0x02,         // Flags
-                (byte) 0xC1,  // MFG Raw Write Command
-                0x07,         // MFG Code
-                (byte) (block & 0xFF), (byte) (block >> 8), //16-bit block number, little endian.
-                data[0],
-                data[1],
-                data[2],
-                data[3],
-                data[4],
-                data[5],
-                data[6],
-                data[7]
-            });
-        else if (blocklen == 4)
-            res=transceive(new byte[]{
-                    0x02,         // Flags
-                    (byte) 0xC1,  // MFG Raw Write Command
-                    0x07,         // MFG Code
-                    (byte) (block & 0xFF), (byte) (block >> 8), //16-bit block number, little endian.
-                    data[0],
-                    data[1],
-                    data[2],
-                    data[3]
-            });
+        byte[] cmd = frame(5 + blocklen);
+        cmd[0] = 0x02;                  // Flags
+        cmd[1] = (byte) 0xC1;           // MFG Raw Write Command
+        cmd[2] = 0x07;                  // MFG Code
+        cmd[3] = (byte) (block & 0xFF); // 16-bit block number, little endian.
+        cmd[4] = (byte) (block >> 8);
+        System.arraycopy(data, off, cmd, 5, blocklen);
+        byte[] res = transceive(cmd);
 
         if (res[0] == 0) {
             return true;
@@ -287,26 +573,54 @@ public abstract class NfcRF430 implements TagTechnology {
 
     //! Reads a block with a 16-bit address.  Custom vendor command.
     public byte[] readBlock16(int block) throws IOException {
-        Log.v("GoodV", String.format("readBlock16(): Fetching block 0x%04x.", block));
+        byte[] res = new byte[blocklen];
+        return readBlock16(block, res, 0) ? res : new byte[]{};
+    }
 
+    //! Reads a block with a 16-bit address into buf.  Custom vendor command.
+    public boolean readBlock16(int block, byte[] buf, int off) throws IOException {
         //For compatibility with custom tags, we default to readBlock8
         //where compatible.
         if (block < 0x100)
-            return readBlock8((byte) block);
+            return readBlock8(block, buf, off);
+
+        if (verbose())
+            Log.v("GoodV", String.format("readBlock16(): Fetching block 0x%04x.", block));
+        byte[] cmd = frame(5);
+        cmd[0] = 0x02;                  // Flags
+        cmd[1] = (byte) 0xC0;           // MFG Raw Read Command
+        cmd[2] = 0x07;                  // MFG Code
+        cmd[3] = (byte) (block & 0xFF); // 16-bit block number, little endian.
+        cmd[4] = (byte) (block >> 8);
+        byte[] res = transceive(cmd);
+
+        //Copy just the bytes on success, or nothing on failure.
+        if (res[0] != 0 || res.length < 1 + blocklen)
+            return false;
+        System.arraycopy(res, 1, buf, off, blocklen);
+        return true;
+    }
 
+    //! Number of blocks that read() should ask fetchBlocks() for at once.
+    int readBlockCount(int adr, int len) throws IOException {
+        return multiBlockCount(adr, len, multireadlen);
+    }
 
-        byte[] res = transceive(new byte[]{
-                0x02,         // Flags
-                (byte) 0xC0,  // MFG Raw Read Command
-                0x07,         // MFG Code
-                (byte) (block & 0xFF), (byte) (block >> 8) //16-bit block number, little endian.
-        });
+    //! Fetches up to count blocks from an aligned address into buf, returning how many arrived.
+    int fetchBlocks(int adr, int count, byte[] buf, int off) throws IOException {
+        /* This is the one place where read() touches the tag, so variants with their own
+           read commands, like the A3 backdoor of the TAL, only need to override this.
+           Returning fewer blocks than requested is fine; zero is a failure.
+         */
+        int block = adr2block(adr);
+        if (block == -1) //Illegal adr.
+            return 0;
 
-        //Return just the bytes on success, or nothing on failure.
-        if (res[0] == 0)
-            return Arrays.copyOfRange(res, 1, res.length);
-        else
-            return new byte[]{};
+        if (count > 1 && readMultipleBlocks8(block, count, buf, off))
+            return count;
+
+        //Automatically falls to 8-bit blocks when needed.
+        return readBlock16(block, buf, off) ? 1 : 0;
     }
 
     /* Finally, we want some high level functions, so that we don't need to keep
@@ -317,160 +631,277 @@ public abstract class NfcRF430 implements TagTechnology {
 
     //! Reads data from a native address.
     public byte[] read(int adr, int len) throws IOException {
-        Log.d("GoodV", "read(): address=@" + String.format("%04x", adr) + " len=" + len);
-
-        //Special addresses are handled differently.
-        if (adr == 0xf867) {
-            // This is the Firmware System Control Register, written by backdoor command.
-            //Log.v("GoodV", "read(): firmware system control register");
-            byte[] early = readBlock8((byte) 0xFF);
-            early=Arrays.copyOf(early, len);
-
-            //When they only want one byte, we're already done.
-            if(len==1)
-                return early;
-
-            //Concatenate in the rest.
-            byte[] late = read(adr+1, len-1);
-            System.arraycopy(late, 0, early, 1, late.length);
-
-            return early;
-        }
-
-        //This does nothing if page doesn't need to be changed.
-        setPageForAdr(adr);
-
-        //Unaligned reads are corrected early.
-        if (adr % blocklen != 0) {
-            //First we grab the block before our data.
-            int earlyblockadr = adr - (adr % blocklen);
-            int earlyblocklen = adr - earlyblockadr + len;
-
-            byte[] data = read(earlyblockadr, earlyblocklen);
+        byte[] res = new byte[len];
+        return read(adr, res, 0, len) ? res : new byte[]{};
+    }
 
-            //Then we return just the requested fragment.
-            try {
-                return Arrays.copyOfRange(data, adr - earlyblockadr, adr - earlyblockadr + len);
-            }catch(ArrayIndexOutOfBoundsException e){
-                Log.e("GoodV", "Array index failure.  Hoping for the best.");
-                return new byte[]{};
-            }
+    //! Reads dst.remaining() bytes from a native address into a ByteBuffer.
+    public boolean read(int adr, ByteBuffer dst) throws IOException {
+        int len = dst.remaining();
+        if (dst.hasArray()) {
+            if (!read(adr, dst.array(), dst.arrayOffset() + dst.position(), len))
+                return false;
+            dst.position(dst.position() + len);
+            return true;
         }
 
+        //Direct buffers need a bounce buffer, but only one per call.
+        byte[] res = read(adr, len);
+        if (res.length != len)
+            return false;
+        dst.put(res);
+        return true;
+    }
 
-        //Native block size is the easiest.
-        if (len == blocklen) {
-            //Log.v("GoodV", "<read(): native block size - calling readBlock16()");
+    //! Reads len bytes from a native address into buf at off.
+    public boolean read(int adr, byte[] buf, int off, int len) throws IOException {
+        /* Rather than recursing for unaligned heads and for every block, we walk the blocks
+           that cover [adr, adr+len) exactly once.  Blocks that fall entirely within the request
+           are fetched straight into the caller's buffer, and only the partial blocks at the
+           edges bounce through our scratch buffer, so nothing is allocated per block beyond
+           the reply that NfcV hands us.
+         */
+        if (verbose())
+            Log.d("GoodV", "read(): address=@" + String.format("%04x", adr) + " len=" + len);
 
-            //Automatically falls to 8-bit blocks when needed.
-            int block = adr2block(adr);
-            if (block == -1) //Illegal adr.
-                return new byte[]{};
+        //Special addresses are handled differently.
+        if (adr == 0xf867 && controlregister && len > 0) {
+            // This is the Firmware System Control Register, written by backdoor command.
+            // Its block is as long as the old block length, so we can't use readBlock8().
+            byte[] cmd = frame(3);
+            cmd[0] = 0x02;          // Flags
+            cmd[1] = (byte) 0x20;   // Standard Read Command
+            cmd[2] = (byte) 0xFF;   // Control register block
+            byte[] res = transceive(cmd);
+            if (res[0] != 0 || res.length < 2)
+                return false;
+            buf[off] = res[1];
 
-            //Return valid adr.
-            return readBlock16(adr2block(adr));
+            //The rest comes from ordinary blocks.
+            adr++;
+            off++;
+            len--;
         }
 
-        //Buffer to fill as we load grab blocks.
-        byte[] res = new byte[len];
-
-        //Grab blocklen chunks and shuttle them over.
-        int i = 0;
-        while (i < len) {
-            //Grab the chunk.
-            //Log.v("GoodV", "read(): recursive call with i="+i);
-            byte[] chunk = read(adr + i, blocklen);
-            if (chunk.length < blocklen) {
-                Log.e("GoodV", "read(): failed to read block address=@" + String.format("%04x", adr + i) + " len=" + blocklen);
-                return new byte[]{};
+        int end = adr + len;
+
+        //When a range straddles both pages, finish the half in the current page before flipping.
+        if (page == 1 && adr < 0xFC34 && end > 0xFC34 && paged())
+            return read(0xFC34, buf, off + 0xFC34 - adr, end - 0xFC34)
+                    && read(adr, buf, off, 0xFC34 - adr);
+
+        int blockadr = adr - (adr % blocklen);
+        while (blockadr < end) {
+            //Long reads run on a background thread, which can be interrupted to cancel them.
+            if (Thread.interrupted())
+                throw new InterruptedIOException("Read cancelled.");
+
+            //This does nothing if page doesn't need to be changed.
+            setPageForAdr(blockadr);
+
+            //Grab as many blocks as we can in one frame when the tag supports it.
+            int count = readBlockCount(blockadr, end - blockadr);
+
+            //Blocks that we already have are cheaper to take from the cache.
+            int first = (blockadr >= baseadr && blockadr < 0x10000) ? adr2block(blockadr) : -1;
+            for (int k = 0; k < count && count > 1 && first >= 0; k++)
+                if (cacheContains(first + k))
+                    count = k;
+            count = Math.max(count, 1);
+
+            //Whole blocks go directly into the caller's buffer, partial ones into scratch.
+            boolean direct = blockadr >= adr && blockadr + count * blocklen <= end;
+            int got = direct
+                    ? fetchBlocks(blockadr, count, buf, off + blockadr - adr)
+                    : fetchBlocks(blockadr, count, scratch, 0);
+            if (got == 0) {
+                Log.e("GoodV", "read(): failed to read block address=@" + String.format("%04x", blockadr) + " len=" + blocklen);
+                return false;
             }
 
-            //Copy up to blocklen or buffer length bytes over.
-            for (int j = 0; j < blocklen && i < len; i++, j++) {
-                res[i] = chunk[j];
+            if (!direct) {
+                int from = Math.max(blockadr, adr);
+                int to = Math.min(blockadr + got * blocklen, end);
+                System.arraycopy(scratch, from - blockadr, buf, off + from - adr, to - from);
             }
+            blockadr += got * blocklen;
+            progress(got * blocklen);
         }
 
-        return res;
+        return true;
+    }
+
+    //! Tells the progress listener, if any, that more bytes have arrived.
+    void progress(int bytes) {
+        //The listener may be cleared from another thread, so we only look at it once.
+        ProgressListener listener = progresslistener;
+        if (listener != null) {
+            progressbytes += bytes;
+            listener.onProgress(progressbytes);
+        }
     }
 
     //! Writes data to a native address.
     public boolean write(int adr, byte[] data) throws IOException {
-        Log.v("GoodV", String.format("Writing %d bytes to 0x%04X.", data.length, adr));
+        return write(adr, data, 0, data.length);
+    }
 
+    //! Writes len bytes from data at off to a native address.
+    public boolean write(int adr, byte[] data, int off, int len) throws IOException {
+        /* Like read(), this walks each covered block once.  Whole blocks are written straight
+           from the caller's buffer, grouped into Write Multiple Blocks when we can, while the
+           partial blocks at either end are read, patched in scratch, and written back.
+         */
+        if (verbose())
+            Log.v("GoodV", String.format("Writing %d bytes to 0x%04X.", len, adr));
 
         //Special addresses are handled differently.
-        if (adr == 0xf867) {
+        if (adr == 0xf867 && controlregister && len > 0) {
             // This is the Firmware System Control Register, written by backdoor command.
-            boolean res=writeBlock8((byte) 0xFF,
-                    new byte[]{(byte) 0x95, data[0], 0x00, 0x00,
-                            0x00, 0x00, 0x00, 0x00
-                    });
-
-            // Read back the new blocklength.
-            readF867();
+            byte[] reg = new byte[]{(byte) 0x95, data[off], 0x00, 0x00,
+                    0x00, 0x00, 0x00, 0x00
+            };
+            boolean res = writeBlock8(0xFF, reg, 0);
+
+            /* The ROM takes the new value as written, so rather than spending a frame to read
+               it back, we take the new block length and page straight from what we wrote.  A
+               failed write might still have landed, so then we ask the tag what it has.
+             */
+            if (res)
+                decodeF867(data[off]);
+            else
+                readF867();
 
             //Return result on failure or if done.
-            if(!res || data.length==1){
-                Log.e("GoodV", "Returning from write with res="+res);
+            if (!res || len == 1) {
+                if (!res)
+                    Log.e("GoodV", "Returning from write with res=" + res);
                 return res;
             }
 
             //Write the rest of the data.
-            return write(adr+1, Arrays.copyOfRange(data, 1, data.length));
+            adr++;
+            off++;
+            len--;
         }
 
-        //This does nothing if page doesn't need to be changed.
-        setPageForAdr(adr);
+        int end = adr + len;
 
-        //Unaligned writes work by incorporating a read of the prior block.
-        if (adr % blocklen != 0) {
-            //First we grab the block before our data.
-            int earlyblockadr = adr - (adr % blocklen);
-            byte[] earlydata = read(earlyblockadr, adr % blocklen);
-            byte[] totaldata = Arrays.copyOf(earlydata, data.length + (adr % blocklen));
-            System.arraycopy(data, 0, totaldata, adr % blocklen, data.length);
+        //When a range straddles both pages, finish the half in the current page before flipping.
+        if (page == 1 && adr < 0xFC34 && end > 0xFC34 && paged())
+            return write(0xFC34, data, off + 0xFC34 - adr, end - 0xFC34)
+                    && write(adr, data, off, 0xFC34 - adr);
 
+        int blockadr = adr - (adr % blocklen);
+        while (blockadr < end) {
+            //This does nothing if page doesn't need to be changed.
+            setPageForAdr(blockadr);
 
-            return write(earlyblockadr, totaldata);
-        }
-
-
-        for (int i = 0; i < data.length; i += blocklen) {
-            int blockadr = adr2block(adr + i);
-
-            if(blockadr==-1){
+            int block = adr2block(blockadr);
+            if (block == -1) {
                 Log.e("GoodV", "Illegal block adr.");
                 return false;
             }
 
-            if (data.length - i >= blocklen) {
-                byte[] blockdata = Arrays.copyOfRange(data, i, i + blocklen);
-                if (!writeBlock16(blockadr, blockdata)) {
+            if (blockadr >= adr && blockadr + blocklen <= end) {
+                //Whole blocks can be grouped into a single frame when the tag supports it.
+                int whole = (end - blockadr) - (end - blockadr) % blocklen;
+                int count = multiBlockCount(blockadr, whole, multiwritelen);
+                if (count > 1 && writeMultipleBlocks8(block, count, data, off + blockadr - adr)) {
+                    blockadr += count * blocklen;
+                    continue;
+                }
+
+                //Otherwise we write this block on its own.
+                if (!writeBlock16(block, data, off + blockadr - adr)) {
                     Log.e("GoodV", String.format("Error writing %d bytes to 0x%04x: %s",
-                            blockdata.length, blockadr,
-                            GoodVUtil.byteArrayToHex(blockdata)
+                            blocklen, block,
+                            GoodVUtil.byteArrayToHex(Arrays.copyOfRange(data,
+                                    off + blockadr - adr, off + blockadr - adr + blocklen))
                     ));
                     return false;
                 }
-            } else { //Not enough data for the full block, so we'll have to copy it in.
-                byte[] blockdata = readBlock16(blockadr);
-                System.arraycopy(data, i, blockdata, 0, data.length % blocklen);
-
+            } else {
+                //Not enough data for the full block, so we'll have to copy it in.
+                if (fetchBlocks(blockadr, 1, scratch, 0) == 0) {
+                    Log.e("GoodV", String.format("Error reading 0x%04x to fill a partial write.", blockadr));
+                    return false;
+                }
+                int from = Math.max(blockadr, adr);
+                int to = Math.min(blockadr + blocklen, end);
+                System.arraycopy(data, off + from - adr, scratch, from - blockadr, to - from);
 
-                if (!writeBlock16(blockadr, blockdata)) {
+                if (!writeBlock16(block, scratch, 0)) {
                     Log.e("GoodV", String.format("Error writing %d bytes to 0x%04x: %s (unfilled)",
-                            blockdata.length, blockadr,
-                            GoodVUtil.byteArrayToHex(blockdata)
+                            blocklen, block,
+                            GoodVUtil.byteArrayToHex(Arrays.copyOf(scratch, blocklen))
                     ));
                     return false;
                 }
             }
+            blockadr += blocklen;
         }
 
         return true;
     }
 
+    //! Enables or disables differential programming in writeTITXT().
+    public void setDiffProgramming(boolean enabled) {
+        diffprogramming = enabled;
+    }
+
+    //! Number of blocks that the last writeTITXT() skipped because they were already correct.
+    public int getSkippedBlocks() {
+        return skippedblocks;
+    }
+
+    //! Writes only those blocks whose contents differ from data.
+    public boolean writeChanged(int adr, byte[] data) throws IOException {
+        /* When reflashing a tag with a slightly patched image, most of the blocks will already
+           be correct.  Reading is much cheaper than writing, especially with Read Multiple Blocks,
+           so we read the whole range first and then write back just the dirty blocks, merging
+           neighbors so that Write Multiple Blocks can still group them.
+         */
+
+        //The control register has side effects, so it's always written.
+        if (adr <= 0xf867 && adr + data.length > 0xf867)
+            return write(adr, data);
+
+        byte[] current = read(adr, data.length);
+        if (current.length != data.length) {
+            Log.w("GoodV", String.format("Unable to read 0x%04x for comparison, writing it all.", adr));
+            return write(adr, data);
+        }
+
+        int end = adr + data.length;
+        int dirtystart = -1; //Start address of the current run of dirty blocks.
+        for (int blockadr = adr - (adr % blocklen); blockadr < end; blockadr += blocklen) {
+            int from = Math.max(blockadr, adr) - adr;
+            int to = Math.min(blockadr + blocklen, end) - adr;
+
+            boolean dirty = false;
+            for (int i = from; i < to; i++)
+                if (data[i] != current[i])
+                    dirty = true;
+
+            if (dirty) {
+                if (dirtystart == -1)
+                    dirtystart = from;
+            } else {
+                skippedblocks++;
+                if (dirtystart != -1 && !write(adr + dirtystart, Arrays.copyOfRange(data, dirtystart, from)))
+                    return false;
+                dirtystart = -1;
+            }
+        }
+
+        //Flush the final run.
+        if (dirtystart != -1)
+            return write(adr + dirtystart, Arrays.copyOfRange(data, dirtystart, data.length));
+
+        return true;
+    }
+
     public byte[] exec(int adr) throws IOException {
         Log.e("GoodV", "This tag type doesn't yet support shellcode.");
         throw new IOException("Unable to execute shellcode.");
@@ -480,8 +911,11 @@ public abstract class NfcRF430 implements TagTechnology {
     public boolean isJTAGLocked() throws IOException {
         byte[] lockstring = this.read(0xFFD0, 4);
         Log.v("GoodV", "JTAG Lock String: " + GoodVUtil.byteArrayToHex(lockstring));
+        return isJTAGLockString(lockstring);
+    }
 
-
+    //! True if the four bytes at FFD0 lock JTAG.
+    static boolean isJTAGLockString(byte[] lockstring) {
         //FF's and 00's are unlocked.
         return !Arrays.equals(lockstring, new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF})
                 && !Arrays.equals(lockstring, new byte[]{0x00, 0x00, 0x00, 0x00});//Any other value is locked.
@@ -489,24 +923,32 @@ public abstract class NfcRF430 implements TagTechnology {
 
     //! Locks or unlocks JTAG.
     public void setJTAGLocked(boolean lockstate) throws IOException {
+        NfcRF430WriteBuffer buffer = new NfcRF430WriteBuffer(this);
+        setJTAGLocked(buffer, lockstate);
+        buffer.flush();
+    }
+
+    //! Queues the JTAG lock into a write buffer, to go out with other small writes.
+    public void setJTAGLocked(NfcRF430WriteBuffer buffer, boolean lockstate) {
         if(lockstate)
-            write(0xFFD0, new byte[]{0x55, 0x55, 0x55, 0x55});  //Locked
+            buffer.write(0xFFD0, new byte[]{0x55, 0x55, 0x55, 0x55});  //Locked
         else
-            write(0xFFD0, new byte[]{0x00, 0x00, 0x00, 0x00});  //Unlocked
+            buffer.write(0xFFD0, new byte[]{0x00, 0x00, 0x00, 0x00});  //Unlocked
     }
 
 
     //! Sets the page number, iff it needs to be changed.
     public void setPage(int newpage) throws IOException {
-        //No pages in 8-byte mode.
-        if (blocklen == 8) return;
+        //No pages in 8-byte mode, and can't set page except in stock.
+        if (!paged()) return;
         //Don't fix it if it ain't broke.
         if (page == newpage) return;
-        //Can't set page except in stock.
-        if (!variant.equals("FRL")) return;
 
         //Flip the bit and write it to memory.  Confusingly it's the inverse of the page number.
-        byte f867 = read(0xf867, 1)[0];
+        //We only need to fetch the register the first time; after that we know what we wrote.
+        if (this.f867 == -1)
+            readF867();
+        byte f867 = (byte) this.f867;
 
         if (newpage == 0)
             f867 |= 2;
@@ -520,19 +962,41 @@ public abstract class NfcRF430 implements TagTechnology {
         page = newpage;
     }
 
+    //! True when this tag has two pages of FRAM, as the stock FRL does in 4-byte mode.
+    public boolean paged() {
+        return blocklen == 4 && variant.equals("FRL");
+    }
+
+    /* Readable spaces of a tag, for NfcRF430ReadPlan.  Ranges within one space can be merged
+       into a single read(), while ranges in different spaces never are.
+     */
+    static final int SPACE_NONE = 0, SPACE_SRAM = 1, SPACE_ALL = 2, SPACE_FRAM0 = 3, SPACE_FRAM1 = 4;
+
+    //! Readable space that holds an address.
+    int readSpace(int adr) {
+        if (adr >= baseadr && adr < 0x10000)
+            return pageForAdr(adr) == 0 ? SPACE_FRAM0 : SPACE_FRAM1;
+        if (adr >= 0x1C00 && adr < 0x2C00 && variant.equals("FRL"))
+            return SPACE_SRAM;
+        return SPACE_NONE;
+    }
+
+    //! Page that holds an address.
+    public int pageForAdr(int adr) {
+        /* Paging only affects Flash memory, where everything before FC34 is in page 0. */
+        return (paged() && adr >= 0xFC34) ? 1 : 0;
+    }
+
     //! Sets the page number to that of an address.
     public void setPageForAdr(int adr) throws IOException {
         //Pages don't matter in 8-byte mode.
         if (blocklen == 8)
             return;
 
-        /* Paging only affects Flash memory, where everything before FC34 is in page 0. */
-        if (adr < 0xFC34)
-            setPage(0);
-        else
-            setPage(1);
+        setPage(pageForAdr(adr));
 
-        Log.v("GoodV", String.format("Page %d for adr %04x.", page, adr));
+        if (verbose())
+            Log.v("GoodV", String.format("Page %d for adr %04x.", page, adr));
     }
 
     /* And some very high level functions, that probably ought to be done outside of this class. */
@@ -540,98 +1004,194 @@ public abstract class NfcRF430 implements TagTechnology {
     //! Dumps a region of memory as an TI TXT format, popular with the MSP430.
     public String readTITXT(int adr, int len) throws IOException {
         StringBuilder dump = new StringBuilder();
-        dump.append(String.format("@%04x", adr));
+        if (!readTITXT(adr, len, new TITXTWriter(dump)))
+            return ""; //Empty string for unreadable regions.
+        return dump.toString();
+    }
 
+    //! Streams a region of memory as TI TXT, a chunk at a time, returning false on a read error.
+    public boolean readTITXT(int adr, int len, TITXTWriter out) throws IOException {
+        /* Rather than waiting for the whole region, we hand each chunk to the writer as soon as
+           it arrives.  If a read fails partway, whatever came before it has already been written,
+           which is still a valid TI TXT file, and the caller learns of the failure.
+         */
         Log.d("GoodV", "readTITXT: reading address=" + String.format("@%04x", adr) + " len=" + len);
-        byte[] data = read(adr, len);
-
-        if (data.length != len) {
-            Log.e("GoodV", String.format("Requested %d bytes but got %d.", len, data.length));
-            return ""; //Empty string for unreadable regions.
-        }
+        byte[] chunk = new byte[Math.min(len, 0x100)];
 
-        for (int i = 0; i < len; i++) {
-            if (i % 16 == 0)
-                dump.append(String.format("\n%02x", data[i]));
-            else
-                dump.append(String.format(" %02x", data[i]));
+        for (int i = 0; i < len; i += chunk.length) {
+            int n = Math.min(chunk.length, len - i);
+            if (!read(adr + i, chunk, 0, n)) {
+                Log.e("GoodV", String.format("Failed to read %d bytes at 0x%04x.", n, adr + i));
+                out.endSection();
+                return false;
+            }
+            out.write(adr + i, chunk, 0, n);
         }
+        out.endSection();
 
-
-        return dump.toString();
+        return true;
     }
 
     //! Writes a TITXT file to memory.
     public boolean writeTITXT(String txt) throws IOException {
-        /* TI's TXT format is rather poorly defined, but in general each line should be either
-           (1) an address preceded by @, (2) a line of up to 16 bytes, or (3) the litter q, which
-           ends the document.
+        return writeTITXT(new StringReader(txt));
+    }
+
+    //! Writes a TITXT file to memory from a stream, such as a file too big for the clipboard.
+    public boolean writeTITXT(InputStream in) throws IOException {
+        return writeTITXT(new InputStreamReader(in, "US-ASCII"));
+    }
 
-           Parsing this, we can simply forget about linebreaks and treat each item as a word.
-           Words beginning with @ set the address, words of just two bytes are data bytes in hex,
-           and the letter q ends the transaction.
+    //! Writes a TITXT file to memory from a Reader.
+    public boolean writeTITXT(Reader in) throws IOException {
+        /* The whole image is parsed and checked before we send a single frame, so that a typo
+           at the end of the file can't leave the tag half programmed.
+         */
+        TITXTImage image;
+        try {
+            image = TITXTImage.parse(in);
+        } catch (ParseException e) {
+            Log.e("GoodV", "Bad TI-TXT file: " + e.getMessage());
+            return false;
+        }
+        return writeImage(image);
+    }
 
-           As a safety check, we should probably overwrite the RESET vector with 0xFFFF first
+    //! Writes a parsed TITXT image to memory.
+    public boolean writeImage(TITXTImage image) throws IOException {
+        /* As a safety check, we should probably overwrite the RESET vector with 0xFFFF first
            if the total write will touch the IVT, so that a failed write will repair the IVT
            rather than leave stale pointers.
          */
-        StringTokenizer tokens = new StringTokenizer(txt);
-
-        //Target address, length, and data.
-        int adr = 0;
-        int len = 0;
-        byte[] data = new byte[0x10000];
-
-        while (tokens.hasMoreTokens()) {
-            //Grab the next word.
-            String word = tokens.nextToken();
-
-            if (word.length() == 2) {
-                //Load new byte into the buffer.
-                data[len++] = (byte) Integer.parseInt(word, 16);
-            } else if (word.equalsIgnoreCase("x")) {
-                // Ending on the 'x' token, so we Execute the last batch of code.
-                exec(adr);
+        skippedblocks = 0;
+
+        //Writes are queued up so that they can be sorted by page, then run before any shellcode.
+        NfcRF430Scheduler scheduler = new NfcRF430Scheduler(this);
+
+        for (TITXTImage.Segment segment : image.getSegments()) {
+            if (segment.exec) {
+                // The 'x' token, so we Execute the last batch of code.
+                if (!scheduler.run())
+                    return false;
+                exec(segment.adr);
+            } else if (diffprogramming) {
+                scheduler.writeChanged(segment.adr, segment.getData());
             } else {
-                //Not a data byte, so we if we have data, we need to flush it.
-                if (len > 0) {
-                    if (!write(adr, Arrays.copyOf(data, len)))
-                        return false;
-                }
-                adr = len = 0;
+                scheduler.write(segment.adr, segment.getData(), 0, segment.length());
             }
+        }
 
-            if (word.equalsIgnoreCase("q")) {
-                // Ending on the 'q' token, so we're done.
-                return true;
-            } else if (word.indexOf('@') == 0) {
-                // This is an address.
-                adr = Integer.parseInt(word.substring(1), 16);
+        return scheduler.run();
+    }
+
+    //! True if every segment of an image reads back as it was written.
+    public boolean verifyImage(TITXTImage image) throws IOException {
+        //The cache would only tell us what we meant to write, so we ask the tag.
+        invalidateCache();
+        for (TITXTImage.Segment segment : image.getSegments()) {
+            //Shellcode may rightly change memory, so we can only check what it left alone.
+            if (segment.exec)
+                continue;
+            byte[] data = segment.getData();
+            if (!Arrays.equals(data, read(segment.adr, data.length))) {
+                Log.e("GoodV", String.format("Verify failed in %d bytes at 0x%04x.", data.length, segment.adr));
+                return false;
             }
         }
-
-        Log.e("GoodV", "TI-TXT file doesn't end with q.");
-        return false;
+        return true;
     }
 
     //! Erases the tag.
     public abstract void erase() throws IOException;
 
+    //! Starts a run of many reads, such as a dump, letting variants keep their setup between reads.
+    public void beginReads() throws IOException {
+    }
+
+    //! Ends a run of reads started by beginReads().
+    public void endReads() throws IOException {
+    }
+
+    //! Regions of memory that make up a dump, as {address, length} pairs.
+    public int[][] dumpRegions() {
+        return new int[][]{
+                {baseadr, blockcount * blocklen}
+        };
+    }
+
+    //! Total number of bytes in the dump regions.
+    public int dumpLength() {
+        int total = 0;
+        for (int[] region : dumpRegions())
+            total += region[1];
+        return total;
+    }
+
     //! Dumps the tag as a string.
     public String dumpTITXT() throws IOException {
-        return readTITXT(baseadr, blockcount * blocklen) + "\nq";
+        StringBuilder dump = new StringBuilder();
+        dumpTITXT(new TITXTWriter(dump));
+        return dump.toString();
+    }
+
+    //! Dumps the tag to a writer, region by region.  Unreadable regions are skipped.
+    public void dumpTITXT(TITXTWriter out) throws IOException {
+        //Read what we can, if we can.
+        for (int[] region : dumpRegions())
+            readTITXT(region[0], region[1], out);
+        out.end();
     }
 
     //! Gets the tags info as a user-readable string.
     public String getInfo() throws IOException {
-        String info =
-                "" +
-                        "INFO:     " + GoodVUtil.byteArrayToHex(getRawInfo()) + "\n\n" +
-                        "SERIAL:   " + GoodVUtil.byteArrayToHex(getSerialNumber()) + "\n" +
-                        "VARIANT:  " + variant + "\n" +
-                        "BLOCKLEN: " + blocklen + "\n" +
-                        "PAGE:     " + page + "\n";
-
-        return info;
+        /* Every field's bytes are gathered into one snapshot before any of them is decoded,
+           so the whole screen costs a few frames rather than a few for each line.
+         */
+        List<NfcRF430InfoField> fields = infoFields();
+        NfcRF430Snapshot snap = new NfcRF430Snapshot(this);
+        for (NfcRF430InfoField field : fields)
+            snap.add(field.adr, field.len);
+        snap.fetch();
+
+        StringBuilder info = new StringBuilder();
+        for (NfcRF430InfoField field : fields)
+            info.append(field.label).append(field.decode(this, snap)).append('\n');
+        return info.toString();
+    }
+
+    //! The lines of getInfo().  Variants add their own to the end.
+    public List<NfcRF430InfoField> infoFields() {
+        ArrayList<NfcRF430InfoField> fields = new ArrayList<NfcRF430InfoField>();
+        fields.add(new NfcRF430InfoField("INFO:     ") {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) throws IOException {
+                return GoodVUtil.byteArrayToHex(snap.getRawInfo()) + "\n";
+            }
+        });
+        fields.add(new NfcRF430InfoField("SERIAL:   ") {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) throws IOException {
+                return GoodVUtil.byteArrayToHex(tag.getSerialNumber(snap.getRawInfo()));
+            }
+        });
+        fields.add(new NfcRF430InfoField("VARIANT:  ") {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return tag.variant;
+            }
+        });
+        fields.add(new NfcRF430InfoField("BLOCKLEN: ") {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return Integer.toString(tag.blocklen);
+            }
+        });
+        fields.add(new NfcRF430InfoField("PAGE:     ") {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return Integer.toString(tag.page);
+            }
+        });
+        return fields;
     }
 }
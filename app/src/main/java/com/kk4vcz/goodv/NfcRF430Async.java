@@ -0,0 +1,166 @@
+package com.kk4vcz.goodv;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/* Fragments get their tag in tagTapped(), on the UI thread, and anything slow they do there
+   either freezes the app or races the close() that MainActivity queues right after.  This class
+   is the friendlier way in:  each operation is queued on the tag I/O thread of NfcRF430Executor,
+   which owns the connection, and comes back as a CompletableFuture.
+
+   Operations run one at a time in the order they were queued, so a fragment can fire off a
+   read, a write and a dump from one tap and they'll run back to back before the tag is closed.
+   Futures chain in the usual way.  Stages added with the plain thenApply() and friends run on
+   the tag thread when the operation finishes there; use a Handler's post() to get back to the
+   UI.  Operations on a tag with an open NfcRF430Session go through it, so a stage may queue
+   more work on the same connection.  Without a session, work should be queued up front and
+   combined, because nothing keeps the tag open for it.
+
+   Cancelling a future that hasn't started keeps it from ever touching the tag.  Cancelling one
+   that's running interrupts the tag thread, which NfcRF430.read() notices between frames.
+ */
+
+public class NfcRF430Async {
+    NfcRF430 tag;
+
+    public NfcRF430Async(NfcRF430 tag) {
+        this.tag = tag;
+    }
+
+    //A future that runs its work on the tag thread and interrupts that work when cancelled.
+    static class Task<T> extends CompletableFuture<T> implements Runnable {
+        Callable<T> work;
+        Thread runner = null;
+
+        Task(Callable<T> work) {
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (isDone()) //Cancelled while queued.
+                    return;
+                runner = Thread.currentThread();
+            }
+            try {
+                complete(work.call());
+            } catch (Throwable t) {
+                completeExceptionally(t);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    //A late interrupt meant for us mustn't cancel the next task.
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            synchronized (this) {
+                if (cancelled && mayInterruptIfRunning && runner != null)
+                    runner.interrupt();
+            }
+            return cancelled;
+        }
+    }
+
+    //! Runs any work on the tag thread.
+    public static <T> CompletableFuture<T> submit(Callable<T> work) {
+        Task<T> task = new Task<T>(work);
+        NfcRF430Executor.submit(task);
+        return task;
+    }
+
+    //! Runs work on the tag thread, within the tag's session if it has one.
+    public static <T> CompletableFuture<T> submit(NfcRF430 tag, Callable<T> work) {
+        NfcRF430Session session = NfcRF430Session.get(tag);
+        if (session != null && session.hold()) {
+            try {
+                return session.submit(work);
+            } finally {
+                session.release();
+            }
+        }
+        return submit(work);
+    }
+
+    //! Unwraps the exception that a dependent stage was completed with.
+    public static Throwable cause(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null)
+            t = t.getCause();
+        return t;
+    }
+
+    //! True if the operation was cancelled, rather than failing on its own.
+    public static boolean isCancellation(Throwable t) {
+        t = cause(t);
+        return t instanceof CancellationException || t instanceof InterruptedIOException;
+    }
+
+    //! Reads len bytes from adr, failing with an IOException if the tag refuses.
+    public CompletableFuture<byte[]> readAsync(final int adr, final int len) {
+        return submit(tag, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                byte[] data = tag.read(adr, len);
+                if (data.length != len)
+                    throw new IOException(String.format("Unable to read %d bytes at %04x.", len, adr));
+                return data;
+            }
+        });
+    }
+
+    //! Writes data to adr, failing with an IOException if the tag refuses.
+    public CompletableFuture<Void> writeAsync(final int adr, final byte[] data) {
+        return submit(tag, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                if (!tag.write(adr, data))
+                    throw new IOException(String.format("Unable to write %d bytes at %04x.", data.length, adr));
+                return null;
+            }
+        });
+    }
+
+    //! Continues a dump session, completing with true when it's finished or false if the tag was lost.
+    public CompletableFuture<Boolean> dumpAsync(final NfcRF430DumpSession session) {
+        return submit(tag, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return session.resume(tag);
+            }
+        });
+    }
+
+    //! Dumps the whole tag as TI-TXT, failing if it slips away first.
+    public CompletableFuture<String> dumpAsync() {
+        return submit(tag, new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                NfcRF430DumpSession session = NfcRF430DumpSession.get(tag);
+                if (!session.resume(tag))
+                    throw new IOException(String.format("Tag lost with %d of %d bytes read.",
+                            session.bytesDone(), session.length()));
+                return session.toTITXT();
+            }
+        });
+    }
+
+    //! Erases the tag.
+    public CompletableFuture<Void> eraseAsync() {
+        return submit(tag, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                tag.erase();
+                return null;
+            }
+        });
+    }
+}
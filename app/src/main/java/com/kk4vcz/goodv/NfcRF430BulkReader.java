@@ -0,0 +1,171 @@
+package com.kk4vcz.goodv;
+
+import android.nfc.TagLostException;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/* The vendor C0 command gives us one 4- or 8-byte block of SRAM per frame, and ROM not at all,
+   so dumping the 4kB of SRAM on an FRL takes hundreds of frames.  This engine instead uploads
+   a little copy routine and calls it through an NfcRF430RPC session.  Each call stuffs a whole
+   RF13M FIFO's worth of bytes into the reply, so a frame carries 31 bytes instead of 8.
+
+   The routine sits just after the RPC buffer, which holds its two arguments:
+
+   buf+0   source   Next address to copy, advanced by each call.
+   buf+2   count    Bytes per reply.
+
+   buf+8:  421E buf+0     mov &source, r14
+           421F buf+2     mov &count, r15
+           43C2 RF13MTXF  mov.b #0, &RF13MTXF   ;Flags of a successful reply.
+   loop:   4EF2 RF13MTXF  mov.b @r14+, &RF13MTXF
+           831F           dec r15
+           23FC           jnz loop
+           4E82 buf+0     mov r14, &source
+           4130           ret
+
+   Since the routine saves its own source pointer, the calls after the first need no writes
+   at all, only the bogus C0 read that triggers them.  Only reads are accelerated; a write must
+   carry its data to the tag in write frames anyway, which the block commands already do.
+
+   While the hook is in place, every failing C0 read is answered by the routine as if it had
+   worked, so the session we open is closed again when read() returns.  A run of reads, like a
+   dump, can hold it open between reads with hold() and release().  A session that the caller
+   opened is left alone.
+ */
+
+public class NfcRF430BulkReader {
+    static final int RF13MTXF = 0x0808;
+    static final int FIFO = 32;         //Bytes of reply that the RF13M FIFO holds, flags included.
+    static final int MAXCOUNT = FIFO - 1;
+
+    NfcRF430FRL tag;
+    NfcRF430RPC rpc = null; //Session in which the routine was uploaded.
+    int code;               //Address of the routine.
+    boolean broken = false; //Set when the routine misbehaves, so we stop trying.
+    boolean owned = false;  //We opened the session, so it's ours to close.
+    int holds = 0;          //Runs of reads that keep our session open between reads.
+
+    public NfcRF430BulkReader(NfcRF430FRL tag) {
+        this.tag = tag;
+    }
+
+    //! True if the engine can read this range, which must lie in SRAM or ROM.
+    static boolean covers(int adr, int len) {
+        int end = adr + len;
+        return (adr >= 0x1C00 && end <= 0x2C00) || inROM(adr, len);
+    }
+
+    //! True if the range lies in ROM, which only the engine can read.
+    static boolean inROM(int adr, int len) {
+        return adr >= 0x4400 && adr + len <= 0x6400;
+    }
+
+    //! The copy routine, for a buffer at buf.
+    static byte[] routine(int buf) {
+        int[] words = {
+                0x421E, buf,
+                0x421F, buf + 2,
+                0x43C2, RF13MTXF,
+                0x4EF2, RF13MTXF,
+                0x831F,
+                0x23FC,
+                0x4E82, buf,
+                0x4130
+        };
+        byte[] res = new byte[(2 * words.length + 7) & ~7];
+        for (int i = 0; i < words.length; i++) {
+            res[2 * i] = (byte) words[i];
+            res[2 * i + 1] = (byte) (words[i] >> 8);
+        }
+        return res;
+    }
+
+    //! Opens an RPC session if needed and uploads the routine into it.
+    void install() throws IOException {
+        if (tag.rpc != null && tag.rpc == rpc)
+            return;
+        owned = tag.rpc == null;
+        rpc = tag.openRPC();
+        code = rpc.getBuffer() + 8;
+        if (!tag.write(code, routine(rpc.getBuffer())))
+            throw new IOException("Unable to upload the bulk read routine.");
+        Log.v("GoodV", String.format("Bulk read routine at %04x.", code));
+    }
+
+    //! Keeps the session open between reads until release().
+    public void hold() {
+        holds++;
+    }
+
+    //! Ends a hold(), closing our session once nothing holds it.
+    public void release() throws IOException {
+        if (holds > 0)
+            holds--;
+        uninstall();
+    }
+
+    //! Closes the session if we opened it and nothing holds it, so C0 errors are errors again.
+    void uninstall() throws IOException {
+        if (holds > 0 || !owned || rpc == null || !rpc.isOpen())
+            return;
+        if (tag.isLost()) {
+            //The handler comes back by itself at the next power up.
+            rpc.lost();
+            return;
+        }
+        rpc.close();
+    }
+
+    //! Reads len bytes from adr into buf, returning false if the engine can't be used.
+    public boolean read(int adr, byte[] buf, int off, int len) throws IOException {
+        if (broken || !covers(adr, len))
+            return false;
+
+        try {
+            return copy(adr, buf, off, len);
+        } finally {
+            uninstall();
+        }
+    }
+
+    //! Copies through the routine, returning false and giving up on the engine if it misbehaves.
+    boolean copy(int adr, byte[] buf, int off, int len) throws IOException {
+        try {
+            install();
+            int count = -1;
+            for (int done = 0; done < len; ) {
+                if (Thread.interrupted())
+                    throw new InterruptedIOException("Read cancelled.");
+                int n = Math.min(MAXCOUNT, len - done);
+
+                //Arguments only when the count changes, because the routine advances the source.
+                byte[] reply;
+                if (n != count) {
+                    int src = adr + done;
+                    reply = rpc.call(code, new byte[]{(byte) src, (byte) (src >> 8), (byte) n, 0}, null);
+                    count = n;
+                } else {
+                    reply = rpc.call(code);
+                }
+
+                if (reply.length != n + 1 || reply[0] != 0)
+                    throw new IOException("Bulk read routine gave a bad reply: " + GoodVUtil.byteArrayToHex(reply));
+                System.arraycopy(reply, 1, buf, off + done, n);
+                done += n;
+                tag.progress(n);
+            }
+            return true;
+        } catch (TagLostException e) {
+            throw e;
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            //Anything else means the routine isn't working here, so we go back to block reads.
+            Log.e("GoodV", "Bulk reads disabled: " + e.getMessage());
+            broken = true;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.kk4vcz.goodv;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/* The glucose monitor keeps its readings in two ring buffers in FRAM, right after the header:
+
+   F878  CRC16 of the body
+   F87A  Trend index, the next of 16 one-minute records to be written
+   F87B  History index, the next of 32 fifteen-minute records to be written
+   F87C  16 trend records of 6 bytes each
+   F8DC  32 history records of 6 bytes each
+   F99C  Wear time in minutes, little endian
+
+   Each record begins with a 13-bit raw glucose value and carries a 14-bit raw temperature in
+   its fourth and fifth bytes.  These are the sensor's raw counts, not mg/dL, since turning
+   them into a reading takes the calibration data at 0x1A00 and a good deal more care.
+
+   Dumping the whole FRAM to get these is slow, so we remember the wear time of our last scan
+   for each sensor and only read the ring slots that have been written since.  A sensor that's
+   scanned every few minutes costs a handful of frames beyond the indices.  Decoded records are
+   appended to a CSV file per sensor, and the last wear time of each sensor is kept in a small
+   properties file beside them.
+ */
+
+public class NfcRF430CGMDecoder {
+    static final int INDICES = 0xF87A, TREND = 0xF87C, HISTORY = 0xF8DC, WEAR = 0xF99C;
+    static final int TRENDSLOTS = 16, HISTORYSLOTS = 32, RECORDLEN = 6;
+    static final int HISTORYMINUTES = 15;
+
+    //One decoded reading.
+    public static class Record {
+        public final char kind;       //'T' for trend, 'H' for history.
+        public final int minute;      //Wear time of the reading.
+        public final long time;       //Wall clock time of the reading, in ms since the epoch.
+        public final int glucose;     //Raw glucose counts.
+        public final int temperature; //Raw temperature counts.
+        public final byte[] raw;
+
+        Record(char kind, int minute, long time, byte[] data, int off) {
+            this.kind = kind;
+            this.minute = minute;
+            this.time = time;
+            raw = new byte[RECORDLEN];
+            System.arraycopy(data, off, raw, 0, RECORDLEN);
+            glucose = ((raw[1] & 0x1F) << 8) | (raw[0] & 0xFF);
+            temperature = ((raw[4] & 0x3F) << 8) | (raw[3] & 0xFF);
+        }
+
+        public String toString() {
+            return String.format("%d,%c,%d,%d,%d,%s", time, kind, minute, glucose, temperature,
+                    GoodVUtil.byteArrayToHex(raw));
+        }
+    }
+
+    File dir;
+    File statefile;
+    Properties state = new Properties();
+
+    //! Keeps the time series and last-seen state in dir.
+    public NfcRF430CGMDecoder(File dir) {
+        this.dir = dir;
+        statefile = new File(dir, "cgm.properties");
+        if (statefile.exists()) {
+            try {
+                InputStream in = new FileInputStream(statefile);
+                try {
+                    state.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e("GoodV", "Couldn't load CGM state, starting over: " + e.getMessage());
+            }
+        }
+    }
+
+    //! CSV file holding a sensor's readings.
+    public File getSeriesFile(NfcRF430 tag) {
+        return new File(dir, GoodVUtil.byteArrayToHex(tag.tagid) + ".csv");
+    }
+
+    //! Wear time of the last scan of this sensor, or -1 if it's new to us.
+    public int getLastWear(NfcRF430 tag) {
+        return Integer.parseInt(state.getProperty(GoodVUtil.byteArrayToHex(tag.tagid), "-1"));
+    }
+
+    //! Reads the records written since the last scan and appends them to the series.
+    //! History comes first, then trend, each oldest first.
+    public List<Record> scan(NfcRF430TAL tag) throws IOException {
+        String serial = GoodVUtil.byteArrayToHex(tag.tagid);
+        long now = System.currentTimeMillis();
+
+        byte[] indices = tag.read(INDICES, 2);
+        byte[] wearbytes = tag.read(WEAR, 2);
+        if (indices.length != 2 || wearbytes.length != 2)
+            throw new IOException("Unable to read CGM indices.");
+        int trendidx = (indices[0] & 0xFF) % TRENDSLOTS;
+        int historyidx = (indices[1] & 0xFF) % HISTORYSLOTS;
+        int wear = ((wearbytes[1] & 0xFF) << 8) | (wearbytes[0] & 0xFF);
+
+        //A wear time that went backward means the sensor restarted, so we take everything.
+        int last = getLastWear(tag);
+        if (last > wear)
+            last = -1;
+        int newtrend = last < 0 ? TRENDSLOTS : Math.min(TRENDSLOTS, wear - last);
+        int newhistory = last < 0 ? HISTORYSLOTS
+                : Math.min(HISTORYSLOTS, wear / HISTORYMINUTES - last / HISTORYMINUTES);
+        newtrend = Math.min(newtrend, wear);
+        newhistory = Math.min(newhistory, wear / HISTORYMINUTES);
+
+        ArrayList<Record> records = new ArrayList<Record>();
+
+        /* History is reckoned at the last multiple of 15 minutes, and trend at each minute,
+           counting back from the slot just before the index.
+         */
+        byte[] history = readRing(tag, HISTORY, HISTORYSLOTS, historyidx, newhistory);
+        int newest = wear - wear % HISTORYMINUTES;
+        for (int i = 0; i < newhistory; i++) {
+            int minute = newest - HISTORYMINUTES * (newhistory - 1 - i);
+            records.add(new Record('H', minute, now - (wear - minute) * 60000L, history, i * RECORDLEN));
+        }
+        byte[] trend = readRing(tag, TREND, TRENDSLOTS, trendidx, newtrend);
+        for (int i = 0; i < newtrend; i++) {
+            int minute = wear - (newtrend - 1 - i);
+            records.add(new Record('T', minute, now - (wear - minute) * 60000L, trend, i * RECORDLEN));
+        }
+
+        append(getSeriesFile(tag), records);
+        state.setProperty(serial, Integer.toString(wear));
+        saveState();
+
+        Log.d("GoodV", "CGM " + serial + " at " + wear + " minutes, " + records.size() + " new records.");
+        return records;
+    }
+
+    //! Reads the count slots just before index, oldest first, in at most two ranges.
+    static byte[] readRing(NfcRF430 tag, int base, int slots, int index, int count) throws IOException {
+        byte[] res = new byte[count * RECORDLEN];
+        int first = (index - count + slots) % slots;
+        int head = Math.min(count, slots - first); //Slots before the ring wraps.
+
+        if (head > 0 && !tag.read(base + first * RECORDLEN, res, 0, head * RECORDLEN))
+            throw new IOException("Unable to read CGM records.");
+        if (count > head && !tag.read(base, res, head * RECORDLEN, (count - head) * RECORDLEN))
+            throw new IOException("Unable to read CGM records.");
+        return res;
+    }
+
+    static void append(File file, List<Record> records) throws IOException {
+        if (records.isEmpty())
+            return;
+        boolean fresh = !file.exists();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.US_ASCII);
+        try {
+            if (fresh)
+                out.write("time,kind,minute,glucose,temperature,raw\n");
+            for (Record r : records)
+                out.write(r + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    void saveState() throws IOException {
+        OutputStream out = new FileOutputStream(statefile);
+        try {
+            state.store(out, "Last wear time of each CGM sensor.");
+        } finally {
+            out.close();
+        }
+    }
+}
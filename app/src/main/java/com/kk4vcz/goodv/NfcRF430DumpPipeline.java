@@ -0,0 +1,256 @@
+package com.kk4vcz.goodv;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+
+/* A dump used to read every block, then format the whole thing as one String, and only then
+   show it.  Here the work is split into stages joined by small bounded queues, so that the
+   formatting, hashing and storage all happen while the radio is busy with the next chunk:
+
+   tag thread:  NfcRF430DumpSession --+--> [queue] --> hex --> [queue] --> storage
+                                      |
+                                      +--> [queue] --> SHA-256 and CRC32
+
+   Each stage has a thread of its own.  The queues hold only a few chunks, so a stage that
+   falls behind holds back the tag rather than piling up memory, and none of the stages ever
+   holds more than a chunk of the dump's text.
+
+   Chunks that earlier taps already read are fed through from the session without touching
+   the tag, so the output file is always a whole dump, written from the beginning.  It goes
+   to a temporary file first and is only renamed into place once the dump is complete.
+ */
+
+public class NfcRF430DumpPipeline implements NfcRF430DumpSession.Listener {
+    static final int DEPTH = 4; //Chunks waiting in each queue.
+
+    //One unit of work between stages, either raw bytes or a bit of TI-TXT for storage.
+    static class Item {
+        static final Item ENDREGION = new Item(), END = new Item();
+        int adr;
+        byte[] data;
+        String text;
+    }
+
+    //A stage of the pipeline, which keeps draining its queue even after it fails.
+    abstract static class Stage implements Runnable {
+        final ArrayBlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(DEPTH);
+        Thread thread;
+        volatile IOException error = null;
+
+        abstract void take(Item item) throws IOException;
+
+        @Override
+        public void run() {
+            while (true) {
+                Item item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    error = new InterruptedIOException("Pipeline stage interrupted.");
+                    return;
+                }
+                try {
+                    if (error == null)
+                        take(item);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+                if (item == Item.END)
+                    return;
+            }
+        }
+
+        void start(String name) {
+            thread = new Thread(this, "GoodV dump " + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void put(Item item) throws InterruptedIOException {
+            try {
+                queue.put(item);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Dump cancelled.");
+            }
+        }
+    }
+
+    NfcRF430DumpSession session;
+    MessageDigest sha256;
+    CRC32 crc32 = new CRC32();
+    String digest = null;
+    long bytes = 0;
+
+    Stage hex, storage, hash;
+
+    public NfcRF430DumpPipeline(NfcRF430DumpSession session) {
+        this.session = session;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //Every Java and Android platform has SHA-256.
+        }
+    }
+
+    //! Dumps the tag into a file as TI-TXT, returning false if the tag was lost first.
+    public boolean run(NfcRF430 tag, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.US_ASCII));
+        boolean done = false;
+        try {
+            done = run(tag, out);
+        } finally {
+            out.close();
+            if (!done || !tmp.renameTo(file))
+                tmp.delete();
+        }
+        if (done && !file.exists())
+            throw new IOException("Unable to save the dump to " + file);
+        return done;
+    }
+
+    //! Dumps the tag to a writer as TI-TXT, returning false if the tag was lost first.
+    public boolean run(NfcRF430 tag, final Writer out) throws IOException {
+        final StringBuilder text = new StringBuilder();
+        final TITXTWriter titxt = new TITXTWriter(text);
+        sha256.reset();
+        crc32.reset();
+        bytes = 0;
+        digest = null;
+
+        storage = new Stage() {
+            @Override
+            void take(Item item) throws IOException {
+                if (item.text != null)
+                    out.write(item.text);
+                if (item == Item.END)
+                    out.flush();
+            }
+        };
+        hex = new Stage() {
+            @Override
+            void take(Item item) throws IOException {
+                if (item == Item.ENDREGION)
+                    titxt.endSection();
+                else if (item == Item.END)
+                    titxt.end();
+                else
+                    titxt.write(item.adr, item.data, 0, item.data.length);
+
+                //The writer keeps its place between chunks, so we just pass on what it produced.
+                if (text.length() > 0) {
+                    Item t = new Item();
+                    t.text = text.toString();
+                    text.setLength(0);
+                    storage.put(t);
+                }
+            }
+        };
+        hash = new Stage() {
+            @Override
+            void take(Item item) {
+                if (item.data == null)
+                    return;
+                sha256.update(item.data);
+                crc32.update(item.data);
+                bytes += item.data.length;
+            }
+        };
+        storage.start("storage");
+        hex.start("hex");
+        hash.start("hash");
+
+        boolean done = false;
+        try {
+            done = session.resume(tag, this);
+        } finally {
+            //Stages always get their END, so their threads finish even if we were cancelled.
+            finish(hex);
+            finish(hash);
+            join(hex);
+            finish(storage);
+            join(storage);
+            join(hash);
+        }
+
+        for (Stage stage : new Stage[]{hex, storage, hash})
+            if (stage.error != null)
+                throw stage.error;
+        if (done)
+            digest = GoodVUtil.byteArrayToHex(sha256.digest());
+        return done;
+    }
+
+    @Override
+    public void chunk(int adr, byte[] data, int off, int len) throws IOException {
+        //The session's buffer may change under us on a later tap, so stages get their own copy.
+        Item item = new Item();
+        item.adr = adr;
+        item.data = new byte[len];
+        System.arraycopy(data, off, item.data, 0, len);
+        hex.put(item);
+        hash.put(item);
+    }
+
+    @Override
+    public void endRegion() throws IOException {
+        hex.put(Item.ENDREGION);
+        hash.put(Item.ENDREGION);
+    }
+
+    //Puts the END marker even if we've been interrupted.
+    static void finish(Stage stage) {
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                stage.queue.put(Item.END);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    static void join(Stage stage) {
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                stage.thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    //! SHA-256 of the readable bytes in address order, as hex, or null if the dump isn't done.
+    public String getSHA256() {
+        return digest;
+    }
+
+    //! CRC32 of the same bytes.
+    public long getCRC32() {
+        return crc32.getValue();
+    }
+
+    //! Number of readable bytes that went into the dump.
+    public long getBytes() {
+        return bytes;
+    }
+}
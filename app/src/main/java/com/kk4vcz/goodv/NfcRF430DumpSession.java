@@ -0,0 +1,205 @@
+package com.kk4vcz.goodv;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/* A dump of a TAL takes long enough that the phone will often slip off the tag before it's
+   done, and starting over from the first block on the next tap is a waste.  This class keeps
+   a dump's progress between taps:  the bytes already read and a bitmap of the chunks that are
+   still missing, keyed by the tag's UID.  When the same tag comes back, we only fetch what
+   we don't yet have.
+
+   Chunks that the tag refuses to give us, as opposed to those lost to a dropped connection,
+   are remembered as unreadable and skipped on later taps, just as a fresh dump would skip
+   them.  Sessions live only as long as the app's process.
+ */
+
+public class NfcRF430DumpSession {
+    static final int CHUNK = 0x100; //Bytes per entry in the bitmaps, one of the longest A3 reads.
+
+    //Unfinished sessions, by UID.
+    static final HashMap<String, NfcRF430DumpSession> sessions = new HashMap<String, NfcRF430DumpSession>();
+
+    String uid;
+    String variant;
+    int[][] regions;
+    byte[][] data;
+    BitSet[] missing;
+    BitSet[] unreadable;
+
+    NfcRF430DumpSession(NfcRF430 tag) {
+        uid = GoodVUtil.byteArrayToHex(tag.tagid);
+        variant = tag.variant;
+        regions = tag.dumpRegions();
+        data = new byte[regions.length][];
+        missing = new BitSet[regions.length];
+        unreadable = new BitSet[regions.length];
+        for (int i = 0; i < regions.length; i++) {
+            data[i] = new byte[regions[i][1]];
+            missing[i] = new BitSet();
+            missing[i].set(0, chunks(i));
+            unreadable[i] = new BitSet();
+        }
+    }
+
+    //! Returns the unfinished session for this tag, or a fresh one if there is none.
+    public static synchronized NfcRF430DumpSession get(NfcRF430 tag) {
+        String uid = GoodVUtil.byteArrayToHex(tag.tagid);
+        NfcRF430DumpSession session = sessions.get(uid);
+
+        //A different block length or firmware would give a different dump, so we start over.
+        if (session == null || !session.variant.equals(tag.variant)
+                || !Arrays.deepEquals(session.regions, tag.dumpRegions())) {
+            session = new NfcRF430DumpSession(tag);
+            sessions.put(uid, session);
+        } else {
+            Log.d("GoodV", "Resuming dump of " + uid + " with " + session.bytesDone() + " bytes done.");
+        }
+        return session;
+    }
+
+    //! Forgets this session, once it's complete or abandoned.
+    public void discard() {
+        synchronized (NfcRF430DumpSession.class) {
+            if (sessions.get(uid) == this)
+                sessions.remove(uid);
+        }
+    }
+
+    int chunks(int region) {
+        return (regions[region][1] + CHUNK - 1) / CHUNK;
+    }
+
+    //! Total bytes in the dump.
+    public int length() {
+        int total = 0;
+        for (int[] region : regions)
+            total += region[1];
+        return total;
+    }
+
+    //! Bytes that have been read or given up on.
+    public synchronized int bytesDone() {
+        int done = 0;
+        for (int i = 0; i < regions.length; i++) {
+            done += regions[i][1];
+            //The last chunk of a region may be short.
+            for (int c = missing[i].nextSetBit(0); c >= 0; c = missing[i].nextSetBit(c + 1))
+                done -= Math.min(CHUNK, regions[i][1] - c * CHUNK);
+        }
+        return done;
+    }
+
+    //! True when nothing is left to fetch.
+    public synchronized boolean isComplete() {
+        for (BitSet m : missing)
+            if (!m.isEmpty())
+                return false;
+        return true;
+    }
+
+    //! Receives the dump in address order, as it's read or from what earlier taps read.
+    public interface Listener {
+        void chunk(int adr, byte[] data, int off, int len) throws IOException;
+
+        void endRegion() throws IOException;
+    }
+
+    //! Fetches every missing chunk.  A TagLostException leaves the session ready to resume.
+    public void run(NfcRF430 tag) throws IOException {
+        run(tag, null);
+    }
+
+    //! Fetches every missing chunk, handing every readable chunk to listener in order.
+    public void run(NfcRF430 tag, Listener listener) throws IOException {
+        //Chunks are short, so the tag keeps anything it sets up for reads until we're done.
+        tag.beginReads();
+        try {
+            for (int i = 0; i < regions.length; i++) {
+                for (int c = 0; c < chunks(i); c++) {
+                    int off = c * CHUNK;
+                    if (fetch(tag, i, c) && listener != null)
+                        listener.chunk(regions[i][0] + off, data[i], off, Math.min(CHUNK, regions[i][1] - off));
+                }
+                if (listener != null)
+                    listener.endRegion();
+            }
+        } finally {
+            tag.endReads();
+        }
+    }
+
+    //! Fetches one chunk of a region if it's missing, returning false if it's unreadable.
+    boolean fetch(NfcRF430 tag, int region, int c) throws IOException {
+        synchronized (this) {
+            if (unreadable[region].get(c))
+                return false;
+            if (!missing[region].get(c))
+                return true;
+        }
+
+        int adr = regions[region][0], off = c * CHUNK;
+        int n = Math.min(CHUNK, regions[region][1] - off);
+        boolean ok = tag.read(adr + off, data[region], off, n);
+
+        synchronized (this) {
+            if (ok) {
+                missing[region].clear(c);
+            } else {
+                //Illegal or unavailable sections fail quickly, and we give up on them.
+                Log.e("GoodV", String.format("Giving up on dump region @%04x at 0x%04x.", adr, adr + off));
+                unreadable[region].set(c, chunks(region));
+                missing[region].clear(c, chunks(region));
+            }
+        }
+        return ok;
+    }
+
+    //! Runs the session, returning false and keeping it for a later tap if the tag is lost.
+    public boolean resume(NfcRF430 tag) throws IOException {
+        return resume(tag, null);
+    }
+
+    //! Resumes the session, handing every readable chunk to listener in address order.
+    public boolean resume(NfcRF430 tag, Listener listener) throws IOException {
+        try {
+            run(tag, listener);
+        } catch (InterruptedIOException e) {
+            //Cancelled on purpose, so there's nothing to resume.
+            discard();
+            throw e;
+        } catch (IOException e) {
+            //Android reports a tag that slipped away as either TagLostException or a failed transceive.
+            Log.d("GoodV", "Tag lost with " + bytesDone() + " of " + length() + " bytes, tap again to resume.");
+            return false;
+        }
+        discard();
+        return true;
+    }
+
+    //! Writes everything that was read, skipping unreadable chunks.
+    public synchronized void write(TITXTWriter out) throws IOException {
+        for (int i = 0; i < regions.length; i++) {
+            for (int c = 0; c < chunks(i); c++) {
+                if (missing[i].get(c) || unreadable[i].get(c))
+                    continue;
+                int off = c * CHUNK;
+                out.write(regions[i][0] + off, data[i], off, Math.min(CHUNK, regions[i][1] - off));
+            }
+            out.endSection();
+        }
+        out.end();
+    }
+
+    //! The dump as a TI-TXT string.
+    public String toTITXT() throws IOException {
+        StringBuilder dump = new StringBuilder();
+        write(new TITXTWriter(dump));
+        return dump.toString();
+    }
+}
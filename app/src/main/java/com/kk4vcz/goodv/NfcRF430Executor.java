@@ -0,0 +1,42 @@
+package com.kk4vcz.goodv;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/* Dumping an RF430 can take long enough that Android will declare the app to be not responding,
+   so slow tag I/O belongs on a background thread.  This is that thread.
+
+   There is exactly one of them, so operations on a tag never overlap, and anything queued after
+   a long dump (like closing the tag) waits for the dump to finish.  Results must be handed back
+   to the UI thread by the caller.
+ */
+
+public class NfcRF430Executor {
+    static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "GoodV tag I/O");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    //! Queues a task, returning a Future that can cancel it by interruption.
+    public static <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    //! Queues a task that needn't return anything.
+    public static Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    //! Queues a task to run after a delay in milliseconds, such as a check that the tag is still there.
+    public static Future<?> schedule(Runnable task, long millis) {
+        return executor.schedule(task, millis, TimeUnit.MILLISECONDS);
+    }
+}
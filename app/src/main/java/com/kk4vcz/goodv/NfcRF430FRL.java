@@ -1,16 +1,32 @@
 package com.kk4vcz.goodv;
 
 import android.nfc.Tag;
+import android.nfc.tech.NfcV;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.List;
 
 public class NfcRF430FRL extends NfcRF430 {
     public NfcRF430FRL(Tag tag) {
-        super(tag);
+        this(tag.getId(), new NfcVTransport(NfcV.get(tag)));
+        this.tag = tag;
+    }
+
+    NfcRF430RPC rpc = null; //Open RPC session, if any.
+    NfcRF430BulkReader bulk = new NfcRF430BulkReader(this);
+    static boolean bulksramdefault = false; //Whether new tags read SRAM through the bulk engine.
+    boolean bulksram = bulksramdefault;
+    boolean unverified = false; //Block length came from a profile, and no reply has confirmed it.
+    static final int BULKMIN = 0x40; //Shorter reads aren't worth the setup.
+
+    public NfcRF430FRL(byte[] tagid, NfcRF430Transport transport) {
+        super(tagid, transport);
 
         //Things specific to this tag.
         variant = "FRL";
+        multireadlen = 0x20; //RF13M FIFO limits us to a few blocks per frame.
+        multiwritelen = 0x20;
     }
 
 
@@ -20,8 +36,111 @@ public class NfcRF430FRL extends NfcRF430 {
         super.connect();
 
         if (variant.equals("FRL")) {
-            readF867();
+            /* A known tag in 8-byte mode skips the read of F867, because the first read checks
+               the block length for free:  a 4-byte tag's replies are too short for 8-byte
+               blocks.  Nothing checks the page, so 4-byte tags always read F867.
+             */
+            NfcRF430Profile profile = NfcRF430Profile.get(tagid);
+            if (profile != null && profile.apply(this) && blocklen == 8) {
+                unverified = true;
+            } else {
+                readF867();
+                NfcRF430Profile.put(this);
+            }
+        }
+    }
+
+    //! Reads F867 if the block length came from a profile, before we do anything that relies on it.
+    void verify() throws IOException {
+        if (!unverified)
+            return;
+        unverified = false;
+        int assumed = blocklen;
+        readF867();
+        if (blocklen != assumed) {
+            Log.d("GoodV", "Tag profile was stale, block length is " + blocklen + ".");
+            NfcRF430Profile.forget(tagid);
         }
+        NfcRF430Profile.put(this);
+    }
+
+    //! The system info gives the block length too, so a mismatch means F867 changed.
+    @Override
+    void rawInfoFetched(byte[] res) throws IOException {
+        if (!rawInfoMatches(res)) {
+            unverified = true;
+            verify();
+        }
+        super.rawInfoFetched(res);
+    }
+
+    //! A reply from before F867 last changed has the wrong block length, so we ask again.
+    @Override
+    boolean rawInfoMatches(byte[] res) {
+        return !variant.equals("FRL") || res.length < 12 || (res[11] & 0xFF) + 1 == blocklen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        //Put the error handler back while we still can.
+        if (rpc != null)
+            rpc.close();
+        super.close();
+    }
+
+    /* Bulk reads upload a routine into SRAM and hook the error handler, so they change the
+       very memory that they might be asked to dump.  That's why they're off for SRAM unless
+       asked for.  ROM can't be read any other way, and the routine doesn't touch it, so ROM
+       always goes through the engine.
+     */
+
+    //! Enables reading SRAM through NfcRF430BulkReader, falling back to blocks if it fails.
+    public void setBulkReads(boolean enabled) {
+        bulksram = enabled;
+    }
+
+    //! Sets whether tags connected from now on read SRAM through NfcRF430BulkReader.
+    public static void setBulkSRAMDefault(boolean enabled) {
+        bulksramdefault = enabled;
+    }
+
+    @Override
+    public boolean read(int adr, byte[] buf, int off, int len) throws IOException {
+        if (len >= BULKMIN && "FRL".equals(variant)
+                && (bulksram || NfcRF430BulkReader.inROM(adr, len))) {
+            //The engine writes its routine, so the block length had better be right.
+            verify();
+            if (bulk.read(adr, buf, off, len))
+                return true;
+        }
+
+        if (unverified) {
+            //Whole replies prove the profile right, and short ones fail, so we try F867.
+            unverified = false;
+            if (super.read(adr, buf, off, len))
+                return true;
+            unverified = true;
+            verify();
+        }
+        return super.read(adr, buf, off, len);
+    }
+
+    //! Keeps the bulk engine installed between reads, until endReads().
+    @Override
+    public void beginReads() throws IOException {
+        bulk.hold();
+    }
+
+    @Override
+    public void endReads() throws IOException {
+        bulk.release();
+    }
+
+    @Override
+    public boolean write(int adr, byte[] data, int off, int len) throws IOException {
+        //A write with the wrong block length would land in the wrong place, so we check first.
+        verify();
+        return super.write(adr, data, off, len);
     }
 
     //! Erases the tag.
@@ -35,24 +154,27 @@ public class NfcRF430FRL extends NfcRF430 {
          */
 
 
+        //Buffered, so each block is written once and F867 goes last.
+        NfcRF430WriteBuffer buffer = new NfcRF430WriteBuffer(this);
         //Invalidate the RESET vector.
-        write(0xFFFE, new byte[]{(byte) 0xFF, (byte) 0xFF});
+        buffer.write(0xFFFE, new byte[]{(byte) 0xFF, (byte) 0xFF});
         //Invalidate the patch table.
-        write(0xFFCE, new byte[]{(byte) 0xFF, (byte) 0xFF});
+        buffer.write(0xFFCE, new byte[]{(byte) 0xFF, (byte) 0xFF});
         //8 byte pages, NFCV stack but no sensors.
-        write(0xF867, new byte[]{(byte) 0x7F});
+        buffer.write(0xF867, new byte[]{(byte) 0x7F});
+        if (!buffer.flush())
+            throw new IOException("Erase failed.");
 
         Log.v("GoodV", "Erase complete.");
     }
 
     @Override
-    public String dumpTITXT() throws IOException {
-        //Read what we can, if we can.
-        String f867 = readTITXT(0xf867, 1) + "\n";
-        String fram = readTITXT(baseadr, blocklen * blockcount) + "\n";
-        String sram = readTITXT(0x1C00, 0x1000) + "\n";
-
-        return f867 + fram + sram + "q";
+    public int[][] dumpRegions() {
+        return new int[][]{
+                {0xf867, 1},
+                {baseadr, blocklen * blockcount},
+                {0x1C00, 0x1000}
+        };
     }
 
     public byte[] exec(int adr) throws IOException {
@@ -76,11 +198,24 @@ public class NfcRF430FRL extends NfcRF430 {
 
         Log.v("GoodV", String.format("Asked to call shellcode at %04x", adr));
 
+        //An open RPC session already has the handler hooked, so it saves both writes.
+        if (rpc != null)
+            return rpc.call(adr);
+
         // First we replace the read error reply handler.
         write(0x1C5C, new byte[]{(byte) (adr & 0xFF), (byte) (adr >> 8)});
 
-        // Then we read from an illegal address to trigger an error,
-        // returning the two bytes of its handler.
+        // Then we trigger it, returning the two bytes of its reply.
+        byte[] shellcodereturn = trigger();
+
+        //And finally, we repair the original handler address, like nothing ever happened.
+        write(0x1C5C, new byte[]{(byte) (0xf6), (byte) (0x4f)});
+
+        return shellcodereturn;
+    }
+
+    //! Reads from an illegal address to call the error handler, returning its reply.
+    byte[] trigger() throws IOException {
         byte[] shellcodereturn = transceive(new byte[]{
                 0x02,         // Flags
                 (byte) 0xC0,  // MFG Raw Read Command
@@ -88,19 +223,59 @@ public class NfcRF430FRL extends NfcRF430 {
                 (byte) (0xbe), (byte) (0xba) //16-bit block number, little endian.
         });
         Log.v("GoodV", "Shellcode returned: " + GoodVUtil.byteArrayToHex(shellcodereturn));
+        return shellcodereturn;
+    }
 
-        //And finally, we repair the original handler address, like nothing ever happened.
-        write(0x1C5C, new byte[]{(byte) (0xf6), (byte) (0x4f)});
+    //! Opens an RPC session, which exec() will use until it's closed.
+    public NfcRF430RPC openRPC() throws IOException {
+        return openRPC(NfcRF430RPC.DEFAULT_BASE);
+    }
 
-        return shellcodereturn;
+    //! Opens an RPC session with its trampoline at base.
+    public NfcRF430RPC openRPC(int base) throws IOException {
+        if (rpc != null)
+            return rpc;
+        NfcRF430RPC session = new NfcRF430RPC(this, base);
+        session.open();
+        rpc = session;
+        return rpc;
     }
 
-    //! Gets the tags info as a user-readable string.
-    public String getInfo() throws IOException {
-        String info = super.getInfo();
-        info +=
-                "JTAGLOCK: " + (isJTAGLocked() ? "LOCKED" : "UNLOCKED") + "\n" +
-                        "RESET VEC:" + GoodVUtil.byteArrayToHex(read(0xFFFE, 2)) + "\n";
-        return info;
+    //! Runs images with several 'x' tokens in one RPC session, saving two writes per call.
+    @Override
+    public boolean writeImage(TITXTImage image) throws IOException {
+        int execs = 0;
+        for (TITXTImage.Segment segment : image.getSegments())
+            if (segment.exec)
+                execs++;
+        //Only the stock FRL firmware has the SRAM and the 1C5C hook that RPC needs.
+        if (execs < 2 || rpc != null || !"FRL".equals(variant))
+            return super.writeImage(image);
+
+        NfcRF430RPC session = openRPC();
+        boolean ok;
+        try {
+            ok = super.writeImage(image);
+        } catch (IOException e) {
+            //Most likely the tag is gone, which undoes the hook for us.
+            session.lost();
+            throw e;
+        }
+        session.close();
+        return ok;
+    }
+
+    //! Adds the JTAG lock and reset vector to getInfo().
+    @Override
+    public List<NfcRF430InfoField> infoFields() {
+        List<NfcRF430InfoField> fields = super.infoFields();
+        fields.add(new NfcRF430InfoField("JTAGLOCK: ", 0xFFD0, 4) {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return isJTAGLockString(snap.get(adr, len)) ? "LOCKED" : "UNLOCKED";
+            }
+        });
+        fields.add(NfcRF430InfoField.hex("RESET VEC:", 0xFFFE, 2));
+        return fields;
     }
 }
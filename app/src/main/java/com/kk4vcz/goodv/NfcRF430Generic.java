@@ -1,6 +1,7 @@
 package com.kk4vcz.goodv;
 
 import android.nfc.Tag;
+import android.nfc.tech.NfcV;
 import android.util.Log;
 
 import java.io.IOException;
@@ -13,7 +14,12 @@ import java.io.IOException;
 
 public class NfcRF430Generic extends NfcRF430 {
     public NfcRF430Generic(Tag tag) {
-        super(tag);
+        this(tag.getId(), new NfcVTransport(NfcV.get(tag)));
+        this.tag = tag;
+    }
+
+    public NfcRF430Generic(byte[] tagid, NfcRF430Transport transport) {
+        super(tagid, transport);
 
         variant = String.format("Unknown%02x%02x", tagid[6], tagid[5]);
 
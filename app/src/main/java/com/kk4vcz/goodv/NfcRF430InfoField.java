@@ -0,0 +1,41 @@
+package com.kk4vcz.goodv;
+
+import java.io.IOException;
+
+/* One line of getInfo(), such as the reset vector or the wear time of a glucose sensor.
+
+   Each field names the bytes of memory that it needs, so that getInfo() can gather every
+   field's bytes into one NfcRF430Snapshot, fetched with as few frames as possible, before any
+   field is decoded.  Fields that come from a command rather than memory have a length of zero
+   and are free to talk to the tag themselves when decoded.
+ */
+
+public abstract class NfcRF430InfoField {
+    public final String label; //Padded to line up, like "WEAR :    ".
+    public final int adr;
+    public final int len;      //Zero for fields that don't come from memory.
+
+    public NfcRF430InfoField(String label, int adr, int len) {
+        this.label = label;
+        this.adr = adr;
+        this.len = len;
+    }
+
+    //! A field that doesn't come from memory.
+    public NfcRF430InfoField(String label) {
+        this(label, 0, 0);
+    }
+
+    //! Returns the text of the field, given a snapshot holding its bytes.
+    public abstract String decode(NfcRF430 tag, NfcRF430Snapshot snap) throws IOException;
+
+    //! A field shown as hex bytes.
+    public static NfcRF430InfoField hex(String label, int adr, int len) {
+        return new NfcRF430InfoField(label, adr, len) {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return GoodVUtil.byteArrayToHex(snap.get(adr, len));
+            }
+        };
+    }
+}
@@ -0,0 +1,170 @@
+package com.kk4vcz.goodv;
+
+import android.nfc.TagLostException;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* When a tag feels slow, we'd like to know why.  This class counts every frame that goes
+   through NfcRF430.transceive(), keyed by the tag variant and the command's opcode:  frames,
+   bytes each way, error replies, lost tags, other exceptions, and a histogram of latency.
+
+   Nothing here takes a lock.  The counters are LongAdders and the histograms are arrays of
+   atomic longs, so the tag thread never waits on the UI thread that's reading a report.
+
+   Histogram buckets are logarithmic with eight linear steps inside each power of two, in the
+   style of an HdrHistogram with one significant digit, so any latency from a nanosecond to a
+   minute lands in one of a few hundred buckets with no more than 12.5% error.
+ */
+
+public class NfcRF430Metrics {
+    static volatile boolean enabled = true;
+
+    //Statistics for every opcode of each variant.
+    static final ConcurrentHashMap<String, AtomicReferenceArray<Stats>> variants =
+            new ConcurrentHashMap<String, AtomicReferenceArray<Stats>>();
+
+    //Counters for a single opcode.
+    public static class Stats {
+        final LongAdder frames = new LongAdder();
+        final LongAdder bytesout = new LongAdder();
+        final LongAdder bytesin = new LongAdder();
+        final LongAdder errors = new LongAdder();   //Replies with the error flag set.
+        final LongAdder lost = new LongAdder();     //TagLostException
+        final LongAdder failures = new LongAdder(); //Any other IOException.
+        final Histogram latency = new Histogram();
+    }
+
+    //! Log-linear histogram of nanoseconds.
+    public static class Histogram {
+        static final int SUBBITS = 3, SUB = 1 << SUBBITS;
+        final AtomicLongArray counts = new AtomicLongArray((64 - SUBBITS) * SUB);
+
+        static int bucket(long v) {
+            if (v < SUB)
+                return (int) Math.max(v, 0);
+            int msb = 63 - Long.numberOfLeadingZeros(v);
+            return (msb - SUBBITS + 1) * SUB + (int) ((v >> (msb - SUBBITS)) & (SUB - 1));
+        }
+
+        //! Smallest value that lands in bucket i.
+        static long lowest(int i) {
+            if (i < SUB)
+                return i;
+            int msb = i / SUB + SUBBITS - 1;
+            return (long) (SUB | (i % SUB)) << (msb - SUBBITS);
+        }
+
+        public void record(long nanos) {
+            counts.incrementAndGet(bucket(nanos));
+        }
+
+        public long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++)
+                total += counts.get(i);
+            return total;
+        }
+
+        //! Returns the lower bound of the bucket holding the given percentile, or 0 if empty.
+        public long percentile(double p) {
+            long total = count();
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(total * p / 100.0), seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(rank, 1))
+                    return lowest(i);
+            }
+            return lowest(counts.length() - 1);
+        }
+    }
+
+    //! Enables or disables collection, which is on by default.
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    //! Returns the counters of an opcode, creating them on first use.
+    public static Stats get(String variant, int opcode) {
+        AtomicReferenceArray<Stats> table = variants.get(variant);
+        if (table == null) {
+            variants.putIfAbsent(variant, new AtomicReferenceArray<Stats>(0x100));
+            table = variants.get(variant);
+        }
+        Stats stats = table.get(opcode & 0xFF);
+        if (stats == null) {
+            table.compareAndSet(opcode & 0xFF, null, new Stats());
+            stats = table.get(opcode & 0xFF);
+        }
+        return stats;
+    }
+
+    //! Records a completed exchange.
+    static void record(String variant, byte[] request, byte[] reply, long nanos) {
+        Stats stats = get(variant, opcode(request));
+        stats.frames.increment();
+        stats.bytesout.add(request.length);
+        stats.bytesin.add(reply.length);
+        if (reply.length == 0 || (reply[0] & 1) != 0)
+            stats.errors.increment();
+        stats.latency.record(nanos);
+    }
+
+    //! Records an exchange that threw instead of replying.
+    static void record(String variant, byte[] request, Exception e, long nanos) {
+        Stats stats = get(variant, opcode(request));
+        stats.frames.increment();
+        stats.bytesout.add(request.length);
+        if (e instanceof TagLostException)
+            stats.lost.increment();
+        else
+            stats.failures.increment();
+        stats.latency.record(nanos);
+    }
+
+    static int opcode(byte[] request) {
+        return request.length > 1 ? request[1] & 0xFF : 0;
+    }
+
+    //! Forgets everything.
+    public static void reset() {
+        variants.clear();
+    }
+
+    //! A human-readable table of everything recorded so far.
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("OP    FRAMES  OUT/IN BYTES     ERR LOST FAIL  P50/P90/P99/MAX ms\n");
+
+        //Sorted by variant, so the report reads the same every time.
+        for (Map.Entry<String, AtomicReferenceArray<Stats>> entry
+                : new TreeMap<String, AtomicReferenceArray<Stats>>(variants).entrySet()) {
+            sb.append(entry.getKey()).append(":\n");
+            AtomicReferenceArray<Stats> table = entry.getValue();
+            for (int op = 0; op < table.length(); op++) {
+                Stats s = table.get(op);
+                if (s == null)
+                    continue;
+                Histogram h = s.latency;
+                sb.append(String.format(Locale.US,
+                        "%02x %9d %7d/%-8d %4d %4d %4d  %.1f/%.1f/%.1f/%.1f\n",
+                        op, s.frames.sum(), s.bytesout.sum(), s.bytesin.sum(),
+                        s.errors.sum(), s.lost.sum(), s.failures.sum(),
+                        h.percentile(50) / 1e6, h.percentile(90) / 1e6,
+                        h.percentile(99) / 1e6, h.percentile(100) / 1e6));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -1,13 +1,20 @@
 package com.kk4vcz.goodv;
 
 import android.nfc.Tag;
+import android.nfc.tech.NfcV;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.List;
 
 public class NfcRF430NXPIcodeSli extends NfcRF430 {
     public NfcRF430NXPIcodeSli(Tag tag) {
-        super(tag);
+        this(tag.getId(), new NfcVTransport(NfcV.get(tag)));
+        this.tag = tag;
+    }
+
+    public NfcRF430NXPIcodeSli(byte[] tagid, NfcRF430Transport transport) {
+        super(tagid, transport);
 
 
     }
@@ -16,11 +23,23 @@ public class NfcRF430NXPIcodeSli extends NfcRF430 {
     public void connect() throws IOException {
         super.connect();
 
-        byte[] rawinfo=getRawInfo();
-        blockcount=rawinfo[12];
         baseadr=0;
         blocklen=4;
         variant="NXPICODESLI";
+        multireadlen=0x40;
+
+        //The size of a tag never changes, so a known tag needn't ask for its system info.
+        NfcRF430Profile profile = NfcRF430Profile.get(tagid);
+        if (profile == null || !profile.apply(this))
+            getRawInfo();
+    }
+
+    //! Takes the block count from any system info we see, in case the profile was wrong.
+    @Override
+    void rawInfoFetched(byte[] res) throws IOException {
+        if (res.length > 12)
+            blockcount = res[12] & 0xFF;
+        super.rawInfoFetched(res);
     }
 
     @Override
@@ -29,13 +48,16 @@ public class NfcRF430NXPIcodeSli extends NfcRF430 {
     }
 
 
-    //! Gets the tags info as a user-readable string.
-    public String getInfo() throws IOException {
-        String info = super.getInfo();
-
-        info +=
-                "BLOCKS: " + blockcount + "\n";
-
-        return info;
+    //! Adds the block count to getInfo().
+    @Override
+    public List<NfcRF430InfoField> infoFields() {
+        List<NfcRF430InfoField> fields = super.infoFields();
+        fields.add(new NfcRF430InfoField("BLOCKS: ") {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return Integer.toString(tag.blockcount);
+            }
+        });
+        return fields;
     }
 }
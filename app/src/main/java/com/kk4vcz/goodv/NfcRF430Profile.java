@@ -0,0 +1,148 @@
+package com.kk4vcz.goodv;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/* Every tap begins by working out what sort of tag this is:  the block length and page from
+   F867 on an FRL, the size of an ICODE SLI, the longest A3 read on a TAL.  On a production
+   line that taps the same few tags over and over, those probes are pure overhead, so this
+   class remembers what we learned about each tag by its UID, in a properties file that
+   survives restarts of the app.
+
+   A profile costs no frames of its own, so it is checked by the first command we'd send
+   anyway.  On an FRL, the block length decides which bytes every write lands on, but a read
+   checks it for free, because a 4-byte tag's replies are too short for 8-byte blocks.  A read
+   that fails, or any write before a read, reads F867 just as a tap without a profile would.
+   The page can't be checked that way, so a tag in 4-byte mode always reads F867.  An ICODE SLI
+   takes its size from the profile instead of the system info, which never changes for a tag.
+   On a TAL, a wrong A3 length merely fails a read, so the profile is forgotten if one does.
+   The system info reply is kept when getInfo() or the like fetches it, and later taps use it
+   instead of asking again, unless an FRL's block length has changed since.
+
+   Profiles are off until setFile() is called.
+ */
+
+public class NfcRF430Profile {
+    static File file = null;
+    static final Properties profiles = new Properties();
+
+    public final String variant;
+    public final int blocklen, blockcount, baseadr, f867, a3words;
+    public final byte[] rawinfo; //System info reply, or an empty array if we never saw one.
+
+    NfcRF430Profile(NfcRF430 tag) {
+        variant = tag.variant;
+        blocklen = tag.blocklen;
+        blockcount = tag.blockcount;
+        baseadr = tag.baseadr;
+        f867 = tag.f867;
+        a3words = tag instanceof NfcRF430TAL ? ((NfcRF430TAL) tag).a3words : 0;
+        rawinfo = tag.rawinfo != null ? tag.rawinfo : new byte[]{};
+    }
+
+    NfcRF430Profile(String line) throws IOException {
+        String[] f = line.split(",", -1);
+        if (f.length != 7)
+            throw new IOException("Bad tag profile: " + line);
+        variant = f[0];
+        blocklen = Integer.parseInt(f[1], 16);
+        blockcount = Integer.parseInt(f[2], 16);
+        baseadr = Integer.parseInt(f[3], 16);
+        f867 = (int) Long.parseLong(f[4], 16); //-1 when unknown.
+        a3words = Integer.parseInt(f[5], 16);
+        rawinfo = GoodVUtil.hexToByteArray(f[6]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s,%x,%x,%x,%x,%x,%s", variant, blocklen, blockcount, baseadr,
+                f867, a3words, GoodVUtil.byteArrayToHex(rawinfo));
+    }
+
+    //! Keeps profiles in file, loading any that are already there, or turns them off if null.
+    public static synchronized void setFile(File file) {
+        NfcRF430Profile.file = file;
+        profiles.clear();
+        if (file == null || !file.exists())
+            return;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                profiles.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e("GoodV", "Couldn't load tag profiles, starting over: " + e.getMessage());
+        }
+    }
+
+    //! The profile of a tag, or null if we don't know it.
+    public static synchronized NfcRF430Profile get(byte[] uid) {
+        String line = file == null ? null : profiles.getProperty(GoodVUtil.byteArrayToHex(uid));
+        if (line == null)
+            return null;
+        try {
+            return new NfcRF430Profile(line);
+        } catch (RuntimeException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //! Remembers what we now know of a tag, saving the file if anything changed.
+    public static synchronized void put(NfcRF430 tag) {
+        if (file == null)
+            return;
+        String uid = GoodVUtil.byteArrayToHex(tag.tagid);
+        String line = new NfcRF430Profile(tag).toString();
+        if (!line.equals(profiles.getProperty(uid))) {
+            profiles.setProperty(uid, line);
+            save();
+        }
+    }
+
+    //! Forgets a tag whose profile turned out to be wrong.
+    public static synchronized void forget(byte[] uid) {
+        if (file != null && profiles.remove(GoodVUtil.byteArrayToHex(uid)) != null)
+            save();
+    }
+
+    static void save() {
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                profiles.store(out, "GoodV tag profiles by UID.");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e("GoodV", "Couldn't save tag profiles: " + e.getMessage());
+        }
+    }
+
+    //! Applies this profile to a tag of the same variant, without spending a frame.
+    boolean apply(NfcRF430 tag) {
+        if (!variant.equals(tag.variant))
+            return false;
+        tag.blockcount = blockcount;
+        tag.baseadr = baseadr;
+        if (tag.controlregister && f867 != -1)
+            tag.decodeF867((byte) f867);
+        else
+            tag.blocklen = blocklen;
+
+        //getRawInfo() checks this against the block length before handing it out.
+        if (rawinfo.length > 0)
+            tag.rawinfo = rawinfo.clone();
+        return true;
+    }
+}
@@ -0,0 +1,151 @@
+package com.kk4vcz.goodv;
+
+import android.nfc.TagLostException;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/* NfcRF430FRL.exec() hooks the read error handler at 1C5C, triggers it, and then puts the old
+   handler back, so each call costs two writes on top of the frame that does the work.  That's
+   fine for a one-off, but too slow for helper routines that we'd like to call in a loop.
+
+   An RPC session hooks the handler once, to a tiny trampoline in SRAM that jumps through a
+   mailbox word.  Calling a routine is then a matter of writing its address into the mailbox,
+   along with any arguments, and triggering the handler with a bogus C0 read.  Calls to the
+   same routine without arguments need no writes at all.
+
+   base+0  4210 base+4  br &mailbox
+   base+4  mailbox      Address of the routine to call.
+   base+6  0000         Unused, keeping the buffer aligned.
+   base+8  buffer       Arguments in, results out, as the routine likes.
+
+   Routines are called just as exec() calls them, as the error handler:  write two bytes to
+   RF13MTXF for the reply and return.  Those two bytes come back from call(), and anything
+   longer can be left in the buffer for call() to read.
+
+   Closing the session puts back the original handler at 4FF6.  If the tag is lost instead,
+   there's nothing to undo, because 1C5C lives in SRAM and the ROM sets it again when the tag
+   next powers up.
+ */
+
+public class NfcRF430RPC {
+    static final int DEFAULT_BASE = 0x2A00; //Clear of the ROM's variables near 1C00 and the stack at 2C00.
+    static final int HANDLER = 0x4FF6;      //rom_rf13_senderror()
+
+    NfcRF430FRL tag;
+    int base;
+    boolean open = false;
+    int target = -1;         //Routine in the mailbox, as far as we know.
+    int calls = 0;
+
+    public NfcRF430RPC(NfcRF430FRL tag) {
+        this(tag, DEFAULT_BASE);
+    }
+
+    //! A session with its trampoline at base, which must be 8-byte aligned and unused by the routines.
+    public NfcRF430RPC(NfcRF430FRL tag, int base) {
+        if (base % 8 != 0 || base < 0x1C60 || base + 8 > 0x2C00)
+            throw new IllegalArgumentException(String.format("Bad RPC trampoline at %04x.", base));
+        this.tag = tag;
+        this.base = base;
+    }
+
+    //! Address of the argument and result buffer.
+    public int getBuffer() {
+        return base + 8;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    //! Number of calls made in this session.
+    public int getCalls() {
+        return calls;
+    }
+
+    //! Installs the trampoline and hooks the error handler.
+    public void open() throws IOException {
+        if (open)
+            return;
+        target = 0;
+        if (!tag.write(base, header(0)))
+            throw new IOException("Unable to write the RPC trampoline.");
+        if (!tag.write(0x1C5C, new byte[]{(byte) base, (byte) (base >> 8)}))
+            throw new IOException("Unable to hook the error handler.");
+        open = true;
+        Log.v("GoodV", String.format("RPC session open with trampoline at %04x.", base));
+    }
+
+    //! Calls a routine without arguments, returning its two bytes of reply.
+    public byte[] call(int adr) throws IOException {
+        return call(adr, null, null);
+    }
+
+    //! Calls a routine with args in the buffer, then reads ret back from the buffer if it isn't null.
+    public byte[] call(int adr, byte[] args, byte[] ret) throws IOException {
+        if (!open)
+            throw new IOException("RPC session isn't open.");
+
+        try {
+            /* A new routine goes into the mailbox along with the arguments in one write, and
+               otherwise we write just the arguments.  Either way, we write whole blocks, so
+               that write() needn't read the last one back first.
+             */
+            int arglen = args == null ? 0 : args.length;
+            if (adr != target || arglen > 0) {
+                int start = adr != target ? 0 : 8;
+                byte[] frame = Arrays.copyOfRange(header(adr), start, start + ((8 - start + arglen + 7) & ~7));
+                if (arglen > 0)
+                    System.arraycopy(args, 0, frame, 8 - start, arglen);
+                if (!tag.write(base + start, frame))
+                    throw new IOException("Unable to write RPC arguments.");
+                target = adr;
+            }
+
+            byte[] reply = tag.trigger();
+            calls++;
+
+            //The routine might have written FRAM behind the cache's back.
+            tag.invalidateCache();
+
+            if (ret != null && ret.length > 0 && !tag.read(getBuffer(), ret, 0, ret.length))
+                throw new IOException("Unable to read RPC results.");
+            return reply;
+        } catch (TagLostException e) {
+            //The handler comes back by itself at the next power up.
+            lost();
+            throw e;
+        }
+    }
+
+    //! Restores the original error handler.
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        if (tag.rpc == this)
+            tag.rpc = null;
+        if (!tag.write(0x1C5C, new byte[]{(byte) HANDLER, (byte) (HANDLER >> 8)}))
+            throw new IOException("Unable to restore the error handler.");
+        Log.v("GoodV", "RPC session closed after " + calls + " calls.");
+    }
+
+    void lost() {
+        open = false;
+        if (tag.rpc == this)
+            tag.rpc = null;
+    }
+
+    //! The trampoline and mailbox, as they should be in the first eight bytes.
+    byte[] header(int adr) {
+        int mailbox = base + 4;
+        return new byte[]{
+                0x10, 0x42,                                 //mov &mailbox, pc
+                (byte) mailbox, (byte) (mailbox >> 8),
+                (byte) adr, (byte) (adr >> 8),              //mailbox
+                0x00, 0x00
+        };
+    }
+}
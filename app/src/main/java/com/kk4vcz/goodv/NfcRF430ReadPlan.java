@@ -0,0 +1,203 @@
+package com.kk4vcz.goodv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/* Plenty of callers want a handful of small, scattered ranges:  the fields of getInfo(), the
+   JTAG lock and reset vector, the status bytes of a glucose sensor.  Reading each on its own
+   rounds it out to whole blocks separately and pays at least one frame apiece, so this class
+   collects the requests first and then plans the fewest transfers that cover them all.
+
+   Requests are rounded out to whole blocks and sorted by address within each readable space
+   of the tag, as given by NfcRF430.readSpace().  Overlapping and touching runs are merged,
+   so no block is read twice, and runs separated by a small gap are merged too when reading
+   the gap costs fewer frames than a second transfer would.  Runs are then read in the pages
+   that need no flip first, then the current page of FRAM, then the other page, so that a
+   4-byte FRL flips at most once.  Every request is filled from the runs that cover it.
+
+   F867 is the FRL's control register rather than memory, so a request that includes it gets
+   that one byte on its own, before anything else is read.
+ */
+
+public class NfcRF430ReadPlan {
+    NfcRF430 tag;
+    ArrayList<Request> requests = new ArrayList<Request>();
+
+    //! One range that a caller wants, and where to put it.
+    public static class Request {
+        public final int adr, len;
+        final byte[] buf;
+        final int off;
+        boolean ok = false;
+
+        Request(int adr, byte[] buf, int off, int len) {
+            this.adr = adr;
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+        }
+
+        //! True once the whole range has been read.
+        public boolean isOk() {
+            return ok;
+        }
+
+        //! The bytes of the range, or an empty array if it couldn't be read.
+        public byte[] getData() {
+            if (!ok)
+                return new byte[]{};
+            if (off == 0 && buf.length == len)
+                return buf;
+            byte[] res = new byte[len];
+            System.arraycopy(buf, off, res, 0, len);
+            return res;
+        }
+    }
+
+    //A block-aligned range to be fetched in one call to read().
+    static class Run {
+        int space, adr, end;
+        byte[] data;
+    }
+
+    public NfcRF430ReadPlan(NfcRF430 tag) {
+        this.tag = tag;
+    }
+
+    //! Asks for len bytes at adr, returning a request that holds them after run().
+    public Request add(int adr, int len) {
+        return add(adr, new byte[len], 0, len);
+    }
+
+    //! Asks for len bytes at adr to be read into buf at off.
+    public Request add(int adr, byte[] buf, int off, int len) {
+        Request r = new Request(adr, buf, off, len);
+        requests.add(r);
+        return r;
+    }
+
+    //! Number of requests waiting to be run.
+    public int size() {
+        return requests.size();
+    }
+
+    //! Reads every request, returning false if any part of any request failed.
+    public boolean run() throws IOException {
+        try {
+            //The control register comes first, before reads elsewhere could change it.
+            byte[] control = null;
+            for (Request r : requests) {
+                if (r.adr == 0xf867 && r.len > 0 && tag.controlregister) {
+                    if (control == null)
+                        control = tag.read(0xf867, 1);
+                    if (control.length == 1)
+                        r.buf[r.off] = control[0];
+                }
+            }
+
+            ArrayList<Run> runs = plan();
+            for (Run run : runs) {
+                byte[] data = new byte[run.end - run.adr];
+                run.data = tag.read(run.adr, data, 0, data.length) ? data : null;
+            }
+
+            boolean ok = true;
+            for (Request r : requests) {
+                r.ok = (control == null || r.adr != 0xf867 || control.length == 1) && fill(r, runs);
+                ok &= r.ok;
+            }
+            return ok;
+        } finally {
+            requests.clear();
+        }
+    }
+
+    //! Merges the requests into as few runs as we can, in the order they should be read.
+    ArrayList<Run> plan() throws IOException {
+        int blocklen = tag.blocklen;
+        ArrayList<Run> pieces = new ArrayList<Run>();
+        for (Request r : requests) {
+            int adr = r.adr, end = r.adr + r.len;
+            if (adr == 0xf867 && tag.controlregister)
+                adr++; //Already fetched.
+            if (adr >= end)
+                continue;
+
+            //Ranges across FC34 are split, so that each half lands in its own page.
+            if (tag.paged() && adr < 0xFC34 && end > 0xFC34) {
+                pieces.add(piece(adr, 0xFC34, blocklen));
+                adr = 0xFC34;
+            }
+            pieces.add(piece(adr, end, blocklen));
+        }
+
+        Collections.sort(pieces, new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                return a.space != b.space ? rank(a) - rank(b) : a.adr - b.adr;
+            }
+        });
+
+        ArrayList<Run> runs = new ArrayList<Run>();
+        Run last = null;
+        for (Run p : pieces) {
+            //Overlapping or touching runs always merge, and gaps merge when that saves frames.
+            boolean merge = last != null && last.space == p.space && (p.adr <= last.end
+                    || (p.space != NfcRF430.SPACE_NONE && frames(last.adr, p.end)
+                    < frames(last.adr, last.end) + frames(p.adr, p.end)));
+            if (merge) {
+                last.end = Math.max(last.end, p.end);
+            } else {
+                runs.add(p);
+                last = p;
+            }
+        }
+        return runs;
+    }
+
+    Run piece(int adr, int end, int blocklen) {
+        Run p = new Run();
+        p.space = tag.readSpace(adr);
+        p.adr = adr - (adr % blocklen);
+        p.end = end + (blocklen - end % blocklen) % blocklen;
+        return p;
+    }
+
+    //! Order of spaces:  those without pages, then the current page, then the other page.
+    int rank(Run r) {
+        if (r.space == NfcRF430.SPACE_FRAM0 || r.space == NfcRF430.SPACE_FRAM1)
+            return (r.space == NfcRF430.SPACE_FRAM0) == (tag.page == 0) ? 0x100 : 0x101;
+        return r.space;
+    }
+
+    //! Frames that read() would need for a range.
+    int frames(int adr, int end) throws IOException {
+        int blocks = (end - adr + tag.blocklen - 1) / tag.blocklen;
+        int perframe = Math.max(1, tag.readBlockCount(adr, end - adr));
+        return (blocks + perframe - 1) / perframe;
+    }
+
+    //! Copies a request's bytes out of the runs that cover it.
+    boolean fill(Request r, ArrayList<Run> runs) {
+        int adr = r.adr, end = r.adr + r.len;
+        if (adr == 0xf867 && tag.controlregister)
+            adr++; //The control register was filled by run().
+
+        //Runs aren't in address order, so we look for whichever holds the next byte.
+        boolean progress = true;
+        while (adr < end && progress) {
+            progress = false;
+            for (Run run : runs) {
+                if (run.data != null && adr >= run.adr && adr < run.end) {
+                    int n = Math.min(end, run.end) - adr;
+                    System.arraycopy(run.data, adr - run.adr, r.buf, r.off + adr - r.adr, n);
+                    adr += n;
+                    progress = true;
+                }
+            }
+        }
+        return adr >= end;
+    }
+}
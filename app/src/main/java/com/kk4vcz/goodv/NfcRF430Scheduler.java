@@ -0,0 +1,130 @@
+package com.kk4vcz.goodv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* In 4-byte mode, the RF430FRL152H splits its FRAM into two pages at FC34, and every switch
+   between them costs us a write to F867.  A program or a dump that hops back and forth across
+   the boundary can pay that price over and over, so this class collects reads and writes and
+   then runs them grouped by page:  first everything in the page we're already on, then
+   everything in the other page.  Within a page, operations keep the order they were given.
+
+   Operations on F867 itself change the page and block length, so they act as a barrier:
+   everything queued before them runs first.  On tags without pages, this is just a queue.
+ */
+
+public class NfcRF430Scheduler {
+    NfcRF430 tag;
+    ArrayList<Op> ops = new ArrayList<Op>();
+
+    //One queued read or write of a range that lies within a single page.
+    static class Op {
+        static final int READ = 0, WRITE = 1, WRITECHANGED = 2;
+
+        int kind;
+        int adr;
+        byte[] buf;
+        int off;
+        int len;
+
+        Op(int kind, int adr, byte[] buf, int off, int len) {
+            this.kind = kind;
+            this.adr = adr;
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+        }
+    }
+
+    public NfcRF430Scheduler(NfcRF430 tag) {
+        this.tag = tag;
+    }
+
+    //! Queues a read of len bytes from adr into buf at off.
+    public void read(int adr, byte[] buf, int off, int len) {
+        add(Op.READ, adr, buf, off, len);
+    }
+
+    //! Queues a write of len bytes from data at off to adr.
+    public void write(int adr, byte[] data, int off, int len) {
+        add(Op.WRITE, adr, data, off, len);
+    }
+
+    //! Queues a write of only those blocks which differ from data.
+    public void writeChanged(int adr, byte[] data) {
+        add(Op.WRITECHANGED, adr, data, 0, data.length);
+    }
+
+    //! Number of operations waiting to be run.
+    public int size() {
+        return ops.size();
+    }
+
+    void add(int kind, int adr, byte[] buf, int off, int len) {
+        //Ranges across FC34 are split, so that each half lands in the right page.
+        //If the pages change before we run, read() and write() will still split correctly.
+        if (tag.paged() && adr < 0xFC34 && adr + len > 0xFC34) {
+            int head = 0xFC34 - adr;
+            add(kind, adr, buf, off, head);
+            add(kind, 0xFC34, buf, off + head, len - head);
+            return;
+        }
+        ops.add(new Op(kind, adr, buf, off, len));
+    }
+
+    //! Runs every queued operation, returning false as soon as one fails.
+    public boolean run() throws IOException {
+        ArrayList<Op> batch = new ArrayList<Op>();
+        try {
+            for (Op op : ops) {
+                if (touchesF867(op)) {
+                    //Barrier, so we finish what came before and then run this one by itself.
+                    if (!runBatch(batch) || !runOp(op))
+                        return false;
+                    batch.clear();
+                } else {
+                    batch.add(op);
+                }
+            }
+            return runBatch(batch);
+        } finally {
+            ops.clear();
+        }
+    }
+
+    boolean touchesF867(Op op) {
+        return tag.controlregister && op.adr <= 0xf867 && op.adr + op.len > 0xf867;
+    }
+
+    //! Runs a batch without barriers, starting with the current page.
+    boolean runBatch(ArrayList<Op> batch) throws IOException {
+        int first = tag.page;
+        for (int pass = 0; pass < 2; pass++) {
+            int page = pass == 0 ? first : 1 - first;
+            for (Op op : batch) {
+                /* The page is judged at run time, because an earlier barrier may have
+                   changed the block length.
+                 */
+                if (tag.pageForAdr(op.adr) == page && !runOp(op))
+                    return false;
+            }
+
+            //Without pages, everything ran in the first pass.
+            if (!tag.paged() && pass == 0 && first == 0)
+                break;
+        }
+        return true;
+    }
+
+    boolean runOp(Op op) throws IOException {
+        switch (op.kind) {
+            case Op.READ:
+                return tag.read(op.adr, op.buf, op.off, op.len);
+            case Op.WRITE:
+                return tag.write(op.adr, op.buf, op.off, op.len);
+            default:
+                return tag.writeChanged(op.adr, Arrays.copyOfRange(op.buf, op.off, op.off + op.len));
+        }
+    }
+}
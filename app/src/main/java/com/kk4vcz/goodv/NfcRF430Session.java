@@ -0,0 +1,218 @@
+package com.kk4vcz.goodv;
+
+import android.nfc.TagLostException;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/* MainActivity used to connect, hand the tag to one tagTapped(), and queue the close right
+   behind whatever that handler queued.  Anything a fragment wanted to do after seeing the
+   results, like verifying what it just programmed, came too late and needed another tap, with
+   another round of probes and an FRL back on page 0.
+
+   A session holds the connection for as long as the tag stays in the field.  Operations from
+   any fragment are queued on the tag thread of NfcRF430Executor and run one at a time, all on
+   the same connection, so the page, block length and RPC session carry over from one to the
+   next.  The block cache doesn't, because the sensor keeps logging while the tag sits in the
+   field, so each operation starts with an empty cache.  An operation isn't finished until the stages chained onto its future have run,
+   so those stages may queue the next operation, and MainActivity holds the session open while
+   tagTapped() runs, so the handler can queue as much as it likes.  A fragment that's shown
+   while the session is open gets the tag too, so a dump, a program and a verify can all
+   share one tap.
+
+   Once the queue drains, the session checks every so often that the tag is still there, and
+   closes when it's gone or when a newer tap replaces it.  Polling can be turned off, in which
+   case the session closes as soon as the queue drains.
+
+   Once an operation loses the tag, even one that quietly gave up, the rest of the queue fails
+   with TagLostException without touching the radio, and the tag is closed without the usual
+   flip back to page 0.
+ */
+
+public class NfcRF430Session {
+    static NfcRF430Session current = null;
+    static long pollinterval = 500; //Milliseconds between checks of an idle tag, or 0 to close when idle.
+
+    final NfcRF430 tag;
+    int pending = 1;          //Queued operations and holds, starting with the hold of open().
+    boolean closed = false;
+    boolean polling = false;  //A check of the idle tag is scheduled.
+    volatile boolean lost = false;
+    int operations = 0;
+
+    NfcRF430Session(NfcRF430 tag) {
+        this.tag = tag;
+    }
+
+    //! Starts a session on a tag, which stays open at least until release().
+    public static NfcRF430Session open(NfcRF430 tag) {
+        NfcRF430Session old;
+        NfcRF430Session session = new NfcRF430Session(tag);
+        synchronized (NfcRF430Session.class) {
+            old = current;
+            current = session;
+        }
+
+        //An older session finishes its own queue, but new work goes to the newest tag.
+        if (old != null)
+            old.idle();
+        return session;
+    }
+
+    //! The open session of the newest tag, or null if there's none.
+    public static synchronized NfcRF430Session current() {
+        return current;
+    }
+
+    //! The open session of this tag, or null if it has none.
+    public static synchronized NfcRF430Session get(NfcRF430 tag) {
+        return current != null && current.tag == tag ? current : null;
+    }
+
+    //! Sets how often an idle session checks for its tag, or 0 to close sessions when they go idle.
+    public static void setPollInterval(long millis) {
+        pollinterval = millis;
+    }
+
+    public NfcRF430 getTag() {
+        return tag;
+    }
+
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    //! True once an operation has lost the tag.
+    public boolean isLost() {
+        return lost;
+    }
+
+    //! Marks the tag as gone, such as when it never connected, so the session closes once idle.
+    public void setLost() {
+        lost = true;
+    }
+
+    //! Queues an operation on the tag, failing at once if the session has already closed.
+    public <T> CompletableFuture<T> submit(final Callable<T> work) {
+        final NfcRF430Async.Task<T> task = new NfcRF430Async.Task<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (lost)
+                    throw new TagLostException("Tag was lost earlier in this session.");
+                //Sensor data changes while the tag sits in the field, so blocks are cached per operation.
+                tag.invalidateCache();
+                try {
+                    return work.call();
+                } finally {
+                    if (tag.isLost())
+                        lost = true;
+                }
+            }
+        });
+
+        if (!hold()) {
+            task.completeExceptionally(new IOException("Tag session is closed, tap again."));
+            return task;
+        }
+        NfcRF430Executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                //Stages chained onto the task run inside run(), before we count it as done.
+                try {
+                    operations++;
+                    task.run();
+                } finally {
+                    release();
+                }
+            }
+        });
+        return task;
+    }
+
+    //! Keeps the session open until a matching release(), returning false if it has already closed.
+    public synchronized boolean hold() {
+        if (closed)
+            return false;
+        pending++;
+        return true;
+    }
+
+    //! Lets go of a hold, such as the one taken by open().
+    public void release() {
+        synchronized (this) {
+            if (--pending > 0 || closed)
+                return;
+        }
+        idle();
+    }
+
+    //! Decides what to do with a session that has nothing queued.
+    void idle() {
+        synchronized (this) {
+            if (closed || pending > 0)
+                return;
+            if (pollinterval > 0 && !lost && current() == this) {
+                if (polling)
+                    return;
+                polling = true;
+                NfcRF430Executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        poll();
+                    }
+                }, pollinterval);
+                return;
+            }
+            closed = true;
+        }
+        close();
+    }
+
+    //! Checks that the idle tag is still there, on the tag thread.
+    void poll() {
+        synchronized (this) {
+            polling = false;
+            //Work that arrived in the meantime will bring us back here when it's done.
+            if (closed || pending > 0)
+                return;
+        }
+        try {
+            if (current() == this && !tag.isPresent()) {
+                Log.d("GoodV", "Tag left the field.");
+                lost = true;
+            }
+        } catch (RuntimeException e) {
+            //Nothing may escape a scheduled poll, or the session would never close.
+            Log.d("GoodV", "Tag check failed: " + e);
+            lost = true;
+        }
+        idle();
+    }
+
+    void close() {
+        synchronized (NfcRF430Session.class) {
+            if (current == this)
+                current = null;
+        }
+
+        //Queued rather than called, so work that went straight to the executor finishes first.
+        NfcRF430Executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Log.d("GoodV", "Session of " + operations + " operations.  Block cache: "
+                        + tag.getCacheHits() + " hits, " + tag.getCacheMisses() + " misses.");
+                try {
+                    //A lost tag can't be put back on page 0, so we only drop the connection.
+                    if (lost || tag.isLost())
+                        tag.transport.close();
+                    else
+                        tag.close();
+                } catch (IOException e) {
+                    Log.d("FAIL", "NFCV connection died before closing.");
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,346 @@
+package com.kk4vcz.goodv;
+
+import android.nfc.TagLostException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/* This is a pretend tag that lives entirely in the JVM, so that the read, write, paging and
+   backdoor logic can be tested and measured on a build machine without a phone in sight.
+
+   It models the 64kB address space of an RF430FRL152H or RF430TAL152H well enough for our own
+   commands:  standard reads and writes (0x20, 0x21) and their multi-block forms (0x23, 0x24),
+   system info (0x2B), the 16-bit vendor commands (0xC0, 0xC1) over SRAM, and the A3 backdoor of
+   the CGM tags.  F867 holds the FRL control register, so bit 0 selects 8-byte blocks, and in
+   4-byte mode the inverted bit 1 selects the page of FRAM at FC34.  Tag-IT and ICODE SLI tags
+   are just a flat array of 4-byte blocks.
+
+   We can't run MSP430 code, but the shellcode hook works all the same:  when a 0xC0 read fails
+   and the error handler pointer at 1C5C has been changed, the simulator calls whichever Java
+   routine was registered at the new address, and a hook to anywhere else hangs the tag.  The
+   trampoline of an NfcRF430RPC session is followed to the routine in its mailbox.
+
+   Every frame can be delayed by a fixed latency, to get a feel for what the radio costs, and
+   the tag can be made to slip away after a given number of frames.
+ */
+
+public class NfcRF430Simulator implements NfcRF430Transport {
+    public static final int FRL = 0, TAL = 1, TAGIT = 2, ICODESLI = 3;
+
+    //! Stands in for shellcode, returning the two bytes that the error handler would send.
+    public interface Routine {
+        byte[] call(NfcRF430Simulator sim) throws IOException;
+    }
+
+    int chip;
+    byte[] tagid;
+    byte[] mem = new byte[0x10000];
+    int f867 = 0x7F;            //FRL control register, 8-byte blocks by default.
+    int blockcount;
+    boolean multiblock = true;  //Whether 0x23 and 0x24 are understood.
+    int multimax = 0x20;        //Most bytes in one multi-block frame.
+    int a3maxwords = 0x40;      //Most words in one A3 read.
+    long latency = 0;           //Nanoseconds per frame.
+    int framecount = 0;
+    int lostafter = -1;         //Frames until the tag leaves the field, or -1 to stay.
+    boolean connected = false;
+    HashMap<Integer, Routine> routines = new HashMap<Integer, Routine>();
+
+    private static final byte[] password = {
+            (byte) 0xde, (byte) 0xad, (byte) 0xbe, (byte) 0xef
+    };
+
+    public NfcRF430Simulator(int chip) {
+        this.chip = chip;
+
+        //UIDs are stored backward, just like Tag.getId() returns them.
+        tagid = new byte[]{0x47, 0x7a, 0x01, 0x00, 0x00, (byte) 0xA2, 0x07, (byte) 0xE0};
+        switch (chip) {
+            case FRL:
+                blockcount = 0xF3;
+                break;
+            case TAL:
+                tagid[5] = (byte) 0xA0;
+                blockcount = 0xF4;
+                multiblock = false;
+                break;
+            case TAGIT:
+                tagid[5] = 0x00;
+                blockcount = 0x40;
+                break;
+            case ICODESLI:
+                tagid[5] = 0x01;
+                tagid[6] = 0x04;
+                blockcount = 0x1C;
+                multimax = 0x40;
+                break;
+        }
+
+        //Unwritten FRAM reads as erased, and the FRL's error handler is in place.
+        Arrays.fill(mem, (byte) 0xFF);
+        mem[0x1C5C] = (byte) 0xF6;
+        mem[0x1C5D] = (byte) 0x4F;
+    }
+
+    //! The UID that a Tag would report for this chip.
+    public byte[] getTagId() {
+        return tagid;
+    }
+
+    //! The whole 64kB address space, for tests to fill and check.
+    public byte[] getMemory() {
+        return mem;
+    }
+
+    public int getF867() {
+        return f867;
+    }
+
+    public void setF867(int f867) {
+        this.f867 = f867 & 0xFF;
+    }
+
+    //! Delays every frame by this many nanoseconds.
+    public void setLatency(long nanos) {
+        latency = nanos;
+    }
+
+    //! Enables or disables the multi-block commands.
+    public void setMultiBlock(boolean multiblock) {
+        this.multiblock = multiblock;
+    }
+
+    //! Sets the largest A3 read, in 16-bit words.
+    public void setA3MaxWords(int words) {
+        a3maxwords = words;
+    }
+
+    //! Registers a routine to run when the error handler is hooked to adr.
+    public void setRoutine(int adr, Routine routine) {
+        routines.put(adr, routine);
+    }
+
+    //! Frames received since the last reset.
+    public int getFrameCount() {
+        return framecount;
+    }
+
+    public void resetFrameCount() {
+        framecount = 0;
+    }
+
+    //! Loses the tag after this many more frames, until the next connect().
+    public void setLostAfter(int frames) {
+        lostafter = frames;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        connected = true;
+        lostafter = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        connected = false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    //! Current block length, which only the FRL can change.
+    int blocklen() {
+        if (chip == FRL)
+            return (f867 & 1) == 1 ? 8 : 4;
+        return chip == TAL ? 8 : 4;
+    }
+
+    //! Address of an 8-bit block, or -1 if there's no such block.
+    int block8(int block) {
+        if (block >= blockcount)
+            return -1;
+        switch (chip) {
+            case FRL:
+                //Page bit is inverted, and only matters in 4-byte mode.
+                boolean page1 = blocklen() == 4 && (f867 & 2) == 0;
+                return (page1 ? 0xFC34 : 0xF868) + block * blocklen();
+            case TAL:
+                return 0xF860 + block * 8;
+            default:
+                return block * 4;
+        }
+    }
+
+    //! Address of a 16-bit block in SRAM, or -1 if there's no such block.
+    int block16(int block) {
+        if (chip != FRL || block < 0x600 || block >= 0x600 + 0x1000 / blocklen())
+            return -1;
+        return 0x1C00 + (block - 0x600) * blocklen();
+    }
+
+    @Override
+    public byte[] transceive(byte[] cmd) throws IOException {
+        //Like NfcV, which throws this rather than an IOException.
+        if (!connected)
+            throw new IllegalStateException("Not connected.");
+        if (lostafter == 0) {
+            connected = false;
+            throw new TagLostException("Tag was lost.");
+        }
+        if (lostafter > 0)
+            lostafter--;
+        framecount++;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency / 1000000, (int) (latency % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted during a frame.");
+            }
+        }
+
+        if (cmd.length < 2)
+            return error(0x01);
+        int bl = blocklen();
+        switch (cmd[1] & 0xFF) {
+            case 0x2B: //System info.
+                return systemInfo();
+
+            case 0x20: { //Read block.
+                int block = cmd[2] & 0xFF;
+                if (chip == FRL && block == 0xFF) {
+                    byte[] res = new byte[1 + bl];
+                    res[1] = (byte) f867;
+                    return res;
+                }
+                return reply(block8(block), bl);
+            }
+
+            case 0x21: { //Write block.
+                int block = cmd[2] & 0xFF;
+                if (cmd.length != 3 + bl)
+                    return error(0x0F);
+                if (chip == FRL && block == 0xFF) {
+                    if (cmd[3] == (byte) 0x95)
+                        f867 = cmd[4] & 0xFF;
+                    return new byte[]{0};
+                }
+                return store(block8(block), cmd, 3, bl);
+            }
+
+            case 0x23: { //Read multiple blocks.
+                int block = cmd[2] & 0xFF, len = ((cmd[3] & 0xFF) + 1) * bl;
+                if (!multiblock)
+                    return error(0x01);
+                if (len > multimax || block8(block + len / bl - 1) < 0)
+                    return error(0x10);
+                return reply(block8(block), len);
+            }
+
+            case 0x24: { //Write multiple blocks.
+                int block = cmd[2] & 0xFF, len = ((cmd[3] & 0xFF) + 1) * bl;
+                if (!multiblock || chip != FRL)
+                    return error(0x01);
+                if (cmd.length != 4 + len)
+                    return error(0x0F);
+                if (len > multimax || block8(block + len / bl - 1) < 0)
+                    return error(0x10);
+                return store(block8(block), cmd, 4, len);
+            }
+
+            case 0xC0: { //Vendor read of a 16-bit block.
+                int adr = block16((cmd[3] & 0xFF) | ((cmd[4] & 0xFF) << 8));
+                if (adr < 0)
+                    return readError();
+                return reply(adr, bl);
+            }
+
+            case 0xC1: { //Vendor write of a 16-bit block.
+                if (cmd.length != 5 + bl)
+                    return error(0x0F);
+                return store(block16((cmd[3] & 0xFF) | ((cmd[4] & 0xFF) << 8)), cmd, 5, bl);
+            }
+
+            case 0xA3: { //Backdoor read of any address.
+                if (chip != TAL)
+                    return error(0x01);
+                if (cmd.length != 10 || !Arrays.equals(Arrays.copyOfRange(cmd, 3, 7), password))
+                    return error(0x0F);
+                int adr = (cmd[7] & 0xFF) | ((cmd[8] & 0xFF) << 8), words = cmd[9] & 0xFF;
+                if (words == 0 || words > a3maxwords || adr + 2 * words > 0x10000)
+                    return error(0x10);
+                return reply(adr, 2 * words);
+            }
+
+            case 0xA2: //Lock
+            case 0xA4: //Unlock
+                if (chip != TAL)
+                    return error(0x01);
+                if (cmd.length != 7 || !Arrays.equals(Arrays.copyOfRange(cmd, 3, 7), password))
+                    return error(0x0F);
+                return new byte[]{0};
+        }
+        return error(0x01);
+    }
+
+    byte[] systemInfo() {
+        /* The FRL replies with just the memory size, like this:
+             OK ?? Serial Number    ????
+             00 04 477a010000a207e0 f207
+           while NXP tags give us everything, including DSFID and AFI.
+         */
+        boolean full = chip == ICODESLI;
+        byte[] res = new byte[full ? 15 : 12];
+        res[1] = (byte) (full ? 0x0F : 0x04);
+        System.arraycopy(tagid, 0, res, 2, 8);
+        int i = full ? 12 : 10;
+        res[i] = (byte) (blockcount - 1);
+        res[i + 1] = (byte) (blocklen() - 1);
+        return res;
+    }
+
+    //! Replies with len bytes from adr.
+    byte[] reply(int adr, int len) {
+        if (adr < 0)
+            return error(0x10);
+        byte[] res = new byte[1 + len];
+        System.arraycopy(mem, adr, res, 1, len);
+        return res;
+    }
+
+    //! Stores len bytes of the frame at off to adr.
+    byte[] store(int adr, byte[] cmd, int off, int len) {
+        if (adr < 0)
+            return error(0x10);
+        System.arraycopy(cmd, off, mem, adr, len);
+        return new byte[]{0};
+    }
+
+    //! A failed 0xC0 read, which calls the error handler at 1C5C.
+    byte[] readError() throws IOException {
+        int handler = u16(0x1C5C);
+        if (handler == 0x4FF6)
+            return error(0x10);
+
+        //The trampoline of an RPC session, br &mailbox, is followed to the routine it calls.
+        if (u16(handler) == 0x4210)
+            handler = u16(u16(handler + 2));
+
+        Routine routine = routines.get(handler);
+        if (routine == null)
+            throw new IOException(String.format("Tag hung in shellcode at %04x.", handler));
+        return routine.call(this);
+    }
+
+    //! Little endian word at adr.
+    public int u16(int adr) {
+        return (mem[adr] & 0xFF) | ((mem[adr + 1] & 0xFF) << 8);
+    }
+
+    static byte[] error(int code) {
+        return new byte[]{0x01, (byte) code};
+    }
+}
@@ -0,0 +1,65 @@
+package com.kk4vcz.goodv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/* A copy of scattered bits of a tag's memory, taken all at once.
+
+   Callers add the ranges they'll need, fetch() reads them through one NfcRF430ReadPlan, and
+   then get() hands out bytes without touching the tag again.  The system info reply is kept
+   too, since several fields are decoded from it.
+ */
+
+public class NfcRF430Snapshot {
+    NfcRF430 tag;
+    NfcRF430ReadPlan plan;
+    ArrayList<NfcRF430ReadPlan.Request> requests = new ArrayList<NfcRF430ReadPlan.Request>();
+    byte[] rawinfo = null;
+
+    public NfcRF430Snapshot(NfcRF430 tag) {
+        this.tag = tag;
+        plan = new NfcRF430ReadPlan(tag);
+    }
+
+    //! Asks for len bytes at adr to be included in the next fetch().
+    public void add(int adr, int len) {
+        if (len > 0)
+            requests.add(plan.add(adr, len));
+    }
+
+    //! Reads every range that was added, returning false if any of them failed.
+    public boolean fetch() throws IOException {
+        return plan.run();
+    }
+
+    //! Returns len bytes at adr from the snapshot, or an empty array if they weren't fetched.
+    public byte[] get(int adr, int len) {
+        for (NfcRF430ReadPlan.Request r : requests) {
+            if (r.isOk() && adr >= r.adr && adr + len <= r.adr + r.len) {
+                byte[] res = new byte[len];
+                System.arraycopy(r.buf, r.off + adr - r.adr, res, 0, len);
+                return res;
+            }
+        }
+        return new byte[]{};
+    }
+
+    //! Returns the byte at adr, or -1 if it wasn't fetched.
+    public int u8(int adr) {
+        byte[] b = get(adr, 1);
+        return b.length == 1 ? b[0] & 0xFF : -1;
+    }
+
+    //! Returns the little endian word at adr, or -1 if it wasn't fetched.
+    public int u16(int adr) {
+        byte[] b = get(adr, 2);
+        return b.length == 2 ? ((b[1] & 0xFF) << 8) | (b[0] & 0xFF) : -1;
+    }
+
+    //! The tag's system info, fetched once per snapshot.
+    public byte[] getRawInfo() throws IOException {
+        if (rawinfo == null)
+            rawinfo = tag.getRawInfo();
+        return rawinfo;
+    }
+}
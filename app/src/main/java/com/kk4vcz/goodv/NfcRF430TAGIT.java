@@ -1,18 +1,25 @@
 package com.kk4vcz.goodv;
 
 import android.nfc.Tag;
+import android.nfc.tech.NfcV;
 import android.util.Log;
 
 import java.io.IOException;
 
 public class NfcRF430TAGIT extends NfcRF430 {
     public NfcRF430TAGIT(Tag tag) {
-        super(tag);
+        this(tag.getId(), new NfcVTransport(NfcV.get(tag)));
+        this.tag = tag;
+    }
+
+    public NfcRF430TAGIT(byte[] tagid, NfcRF430Transport transport) {
+        super(tagid, transport);
 
         variant = "TAGIT";
         blocklen = 4;
         baseadr = 0;
         blockcount = 0x40;
+        multireadlen = 0x20;
     }
 
     @Override
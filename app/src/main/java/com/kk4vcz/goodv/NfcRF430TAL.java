@@ -1,10 +1,12 @@
 package com.kk4vcz.goodv;
 
 import android.nfc.Tag;
+import android.nfc.TagLostException;
+import android.nfc.tech.NfcV;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.List;
 
 /* This class handles the RF430TAL152H chip found in some commercial Glucose Monitor devices.  With
    the backdoor password, it is able to read from any address within those devices.  Without the
@@ -14,14 +16,22 @@ import java.util.Arrays;
 
 public class NfcRF430TAL extends NfcRF430FRL {
     public NfcRF430TAL(Tag tag) {
+        this(tag.getId(), new NfcVTransport(NfcV.get(tag)));
+        this.tag = tag;
+    }
+
+    public NfcRF430TAL(byte[] tagid, NfcRF430Transport transport) {
         //Our super is the RF430FRL, so many functions we can inherit without modification.
-        super(tag);
+        super(tagid, transport);
 
         //Then we change the details that differ from the FRL.
         baseadr = 0xF860; //Base adr is one block lower.
         blocklen = 8;     //Block length is always 8.
         variant = "GCM";
         blockcount = 0xF4;
+        multireadlen = 0; //We read with the A3 backdoor instead.
+        multiwritelen = 0;
+        controlregister = false; //F867 special address doesn't exist in the TAL chips.
     }
 
     private byte[] password = {
@@ -102,25 +112,133 @@ public class NfcRF430TAL extends NfcRF430FRL {
 
     //! Reads a block using the backdoor command of the CGM tags.
     public byte[] readA3(int adr) throws IOException {
-        //Log.v("GoodV", String.format("readA3(): Fetching block at 0x%04x.", adr));
+        byte[] res = new byte[blocklen];
+        return readA3(adr, res, 0) ? res : new byte[]{};
+    }
 
-        byte[] res = transceive(new byte[]{
-                0x02,         // Flags
-                (byte) 0xA3,  // backdoor Raw Read Command
-                0x07,         // MFG Code
+    //! Reads a block into buf using the backdoor command of the CGM tags.
+    public boolean readA3(int adr, byte[] buf, int off) throws IOException {
+        //FRAM blocks can come from the cache, but ROM and SRAM are always fetched.
+        int block = (adr >= baseadr && adr % blocklen == 0) ? adr2block(adr) : -1;
+        if (cacheRead(block, buf, off))
+            return true;
 
-                //Secret password.
-                password[0], password[1], password[2], password[3],
+        return readA3(adr, blocklen / 2, buf, off);
+    }
 
-                (byte) (adr & 0xFF), (byte) (adr >> 8), //16-bit address, little endian.
-                0x04          // 4 16-bit words is one block.
-        });
-        if (res[0] == 0) {
-            //Log.v("GoodV", String.format("readA3(): "+GoodVUtil.byteArrayToHex(res), adr));
-            return Arrays.copyOfRange(res, 1, res.length);
+    //! Reads any number of 16-bit words into buf with a single backdoor command.
+    public boolean readA3(int adr, int words, byte[] buf, int off) throws IOException {
+        //Log.v("GoodV", String.format("readA3(): Fetching %d words at 0x%04x.", words, adr));
+
+        byte[] cmd = frame(10);
+        cmd[0] = 0x02;                // Flags
+        cmd[1] = (byte) 0xA3;         // backdoor Raw Read Command
+        cmd[2] = 0x07;                // MFG Code
+
+        //Secret password.
+        System.arraycopy(password, 0, cmd, 3, 4);
+
+        cmd[7] = (byte) (adr & 0xFF); //16-bit address, little endian.
+        cmd[8] = (byte) (adr >> 8);
+        cmd[9] = (byte) words;        // 16-bit words, 4 to a block.
+
+        byte[] res = transceive(cmd);
+        if (res[0] != 0 || res.length < 1 + 2 * words)
+            return false;
+        System.arraycopy(res, 1, buf, off, 2 * words);
+
+        //Any whole FRAM blocks are worth keeping.
+        if (adr >= baseadr && adr % blocklen == 0)
+            for (int i = 0; (i + 1) * blocklen <= 2 * words; i++)
+                cachePut(adr2block(adr + i * blocklen), res, 1 + i * blocklen);
+        return true;
+    }
+
+    /* A3 carries its own word count, so one frame can carry far more than a block.  How much
+       more depends on the chip and the phone, so we try a few sizes once per session, from
+       largest to smallest, and keep the first that works.  The largest fills our scratch
+       buffer, so read() never needs to split a reply.
+     */
+    static final int[] A3SIZES = {0x80, 0x40, 0x20, 0x10, 0x08};
+    int a3words = 0; //Largest A3 read in words, or 0 until we've probed.
+    boolean a3profiled = false; //True if a3words came from NfcRF430Profile and hasn't been tried.
+
+    //! Takes the A3 length from the tag's profile, if we've seen it before.
+    @Override
+    public void connect() throws IOException {
+        super.connect();
+        NfcRF430Profile profile = NfcRF430Profile.get(tagid);
+        if (profile != null && profile.variant.equals(variant) && profile.a3words != 0) {
+            a3words = profile.a3words;
+            a3profiled = true;
         }
+    }
 
-        return new byte[]{};
+    //! Returns the largest A3 read that works, in 16-bit words.
+    public int getA3MaxWords() throws IOException {
+        if (a3words != 0)
+            return a3words;
+
+        a3words = blocklen / 2; //One block always works.
+        for (int words : A3SIZES) {
+            try {
+                if (readA3(baseadr, words, scratch, 0)) {
+                    a3words = words;
+                    break;
+                }
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                //Too long for the radio link, so we try a shorter one.
+                Log.d("GoodV", "A3 read of " + words + " words failed: " + e.getMessage());
+            }
+        }
+        Log.d("GoodV", "A3 reads up to " + a3words + " words at once.");
+        NfcRF430Profile.put(this);
+        return a3words;
+    }
+
+    //! Reads as many blocks as the A3 backdoor will give us at once, anywhere in memory.
+    @Override
+    int readBlockCount(int adr, int len) throws IOException {
+        int count = Math.min(getA3MaxWords() * 2 / blocklen, (len + blocklen - 1) / blocklen);
+        count = Math.min(count, (0x10000 - adr) / blocklen);
+        return Math.max(count, 1);
+    }
+
+    //! The backdoor reads anywhere, so all of memory is one space.
+    @Override
+    int readSpace(int adr) {
+        return SPACE_ALL;
+    }
+
+    //! All of our reads go through the A3 backdoor, which works at any address.
+    @Override
+    int fetchBlocks(int adr, int count, byte[] buf, int off) throws IOException {
+        if (count > 1) {
+            boolean ok;
+            try {
+                ok = readA3(adr, count * blocklen / 2, buf, off);
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                ok = false;
+                if (!a3profiled)
+                    throw e;
+            }
+            if (ok) {
+                a3profiled = false;
+                return count;
+            }
+
+            //A remembered length that doesn't work here is forgotten, and we probe again.
+            if (a3profiled) {
+                a3profiled = false;
+                a3words = 0;
+                NfcRF430Profile.forget(tagid);
+            }
+        }
+        return readA3(adr, buf, off) ? 1 : 0;
     }
 
     //! Erases the tag.
@@ -161,34 +279,33 @@ public class NfcRF430TAL extends NfcRF430FRL {
     }
 
     @Override
-    public String dumpTITXT() throws IOException {
-        String fram = readTITXT(0xf800, 2048) + "\n";
-        String rom = readTITXT(0x4400, 0x2000) + "\n";
-        String sram = readTITXT(0x1C00, 0x1000) + "\n";
-        //Serial number and calibration are here.
-        String config = readTITXT(0x1a00, 64) + "\n";
-
-        return config + fram + rom + sram + "q";
+    public int[][] dumpRegions() {
+        return new int[][]{
+                //Serial number and calibration are here.
+                {0x1a00, 64},
+                {0xf800, 2048},
+                {0x4400, 0x2000},
+                {0x1C00, 0x1000}
+        };
     }
 
     public String getStageOfLife() throws IOException {
-        try {
-            byte [] stage = read(0xf864, 1);
-            switch (stage[0]) {
-                case 0x01:
-                    return "To Activate";
-                case 0x02:
-                    return "Warming up";
-                case 0x03:
-                    return "Operational";
-                case 0x05:
-                    return "Expired";
-                default:
-                    return String.format("%02x", stage[0]);
-            }
+        byte[] stage = read(0xf864, 1);
+        return stage.length == 1 ? decodeStage(stage[0] & 0xFF) : "FF";
+    }
 
-        }catch(ArrayIndexOutOfBoundsException e){
-            return "FF";
+    static String decodeStage(int stage) {
+        switch (stage) {
+            case 0x01:
+                return "To Activate";
+            case 0x02:
+                return "Warming up";
+            case 0x03:
+                return "Operational";
+            case 0x05:
+                return "Expired";
+            default:
+                return String.format("%02x", stage);
         }
     }
 
@@ -216,19 +333,19 @@ public class NfcRF430TAL extends NfcRF430FRL {
     }
 
     public String getRegion() throws IOException {
-        try {
-            byte[] regionbytes = read(0xf9a2, 2);
-            switch (regionbytes[1]) {
-                case 0x01:
-                    return "France";
-                case 0x08:
-                    return "Israel";
-                default:
-                    return String.format("%02x %02x", regionbytes[0], regionbytes[1]);
-            }
-        }
-        catch(ArrayIndexOutOfBoundsException e){
+        return decodeRegion(read(0xf9a2, 2));
+    }
+
+    static String decodeRegion(byte[] regionbytes) {
+        if (regionbytes.length != 2)
             return "ERROR";
+        switch (regionbytes[1]) {
+            case 0x01:
+                return "France";
+            case 0x08:
+                return "Israel";
+            default:
+                return String.format("%02x %02x", regionbytes[0], regionbytes[1]);
         }
     }
 
@@ -241,74 +358,48 @@ public class NfcRF430TAL extends NfcRF430FRL {
         return GoodVUtil.byteArrayToHex(res);
     }
 
-    //! Gets the tags info as a user-readable string.
-    public String getInfo() throws IOException {
-        String info = super.getInfo();
-        info += "STAGE:    " + getStageOfLife() + "\n";
-        info += "INDICATOR:" + getIndicator() + "\n";
-        info += "STATE:    " + getA1Text() + "\n";
-        info += "WEAR :    " + getWearTime() + " minutes\n";
-        info += "REGION:   " + getRegion() + "\n";
-        info += "Trend idx:" + getTrendIndex() + "\n";
-        info += "Hist idx: " + getHistoryIndex() + "\n";
-        return info;
-    }
-
-
-    //! Reads data from a native address.
-    public byte[] read(int adr, int len) throws IOException {
-        Log.d("GoodV", "read(): address=@" + String.format("%04x", adr) + " len=" + len);
-
-        //F867 special address doesn't exist in the TAL chips.
-
-        //This does nothing if page doesn't need to be changed.
-        setPageForAdr(adr);
-
-        //Unaligned reads are corrected early.
-        if (adr % blocklen != 0) {
-            //First we grab the block before our data.
-            int earlyblockadr = adr - (adr % blocklen);
-            int earlyblocklen = adr - earlyblockadr + len;
-
-            byte[] data = read(earlyblockadr, earlyblocklen);
-
-            //Then we return just the requested fragment.
-            try {
-                return Arrays.copyOfRange(data, adr - earlyblockadr, adr - earlyblockadr + len);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                Log.e("GoodV", "Array index failure.  Hoping for the best.");
-                return new byte[]{};
+    //! Adds the sensor's state to getInfo(), all from one snapshot of FRAM.
+    @Override
+    public List<NfcRF430InfoField> infoFields() {
+        List<NfcRF430InfoField> fields = super.infoFields();
+        fields.add(new NfcRF430InfoField("STAGE:    ", 0xf864, 1) {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                int stage = snap.u8(adr);
+                return stage < 0 ? "FF" : decodeStage(stage);
             }
-        }
-
-
-        //Native block size is the easiest.
-        if (len == blocklen) {
-            //Fancy backdoor command!
-            return readA3(adr);
-        }
-
-        //Buffer to fill as we load grab blocks.
-        byte[] res = new byte[len];
-
-        //Grab blocklen chunks and shuttle them over.
-        int i = 0;
-        while (i < len) {
-            //Grab the chunk.
-            //Log.v("GoodV", "read(): recursive call with i="+i);
-            byte[] chunk = read(adr + i, blocklen);
-            if (chunk.length < blocklen) {
-                Log.e("GoodV", "read(): failed to read block address=@"
-                        + String.format("%04x", adr + i) + " len=" + blocklen);
-                return new byte[]{};
+        });
+        fields.add(NfcRF430InfoField.hex("INDICATOR:", 0xf865, 1));
+        fields.add(new NfcRF430InfoField("STATE:    ") {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) throws IOException {
+                return getA1Text();
             }
-
-            //Copy up to blocklen or buffer length bytes over.
-            for (int j = 0; j < blocklen && i < len; i++, j++) {
-                res[i] = chunk[j];
+        });
+        fields.add(new NfcRF430InfoField("WEAR :    ", 0xf99c, 2) {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return snap.u16(adr) + " minutes";
             }
-        }
-
-        return res;
+        });
+        fields.add(new NfcRF430InfoField("REGION:   ", 0xf9a2, 2) {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return decodeRegion(snap.get(adr, len));
+            }
+        });
+        fields.add(new NfcRF430InfoField("Trend idx:", 0xf87a, 1) {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return Integer.toString(snap.u8(adr));
+            }
+        });
+        fields.add(new NfcRF430InfoField("Hist idx: ", 0xf87b, 1) {
+            @Override
+            public String decode(NfcRF430 tag, NfcRF430Snapshot snap) {
+                return Integer.toString(snap.u8(adr));
+            }
+        });
+        return fields;
     }
 }
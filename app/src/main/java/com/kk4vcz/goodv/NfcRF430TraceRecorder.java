@@ -0,0 +1,248 @@
+package com.kk4vcz.goodv;
+
+import android.nfc.TagLostException;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/* When a tag misbehaves in the field, the only evidence is usually a vague complaint, so this
+   transport sits between NfcRF430 and the real one, recording every request and reply with
+   nanosecond timing.  NfcRF430TraceReplay can then feed the session back on a desktop JVM.
+
+   The tap path only copies the request, because NfcRF430 reuses its command frames, and drops
+   a record into a queue.  A background thread does all of the encoding and file I/O.  If that
+   thread falls behind, records are dropped and counted rather than slowing down the tag.
+
+   Each trace file is an append-only series of sessions, one per tap, all big endian:
+
+   'S' "GVTR" version(1) wallclock(long ms) uidlen(1) uid
+   'C'|'Z' delta                           -- connect or close
+   'F' delta duration reqlen req replen reply  -- a completed exchange
+   'L' delta duration reqlen req               -- TagLostException
+   'E' delta duration reqlen req message(UTF)  -- any other IOException
+
+   where delta is the nanoseconds since the previous record's start and all numbers but the
+   header's are unsigned varints of seven bits per byte, low bits first.
+ */
+
+public class NfcRF430TraceRecorder implements NfcRF430Transport {
+    static final int MAGIC = 0x47565452; //"GVTR"
+    static final int VERSION = 1;
+
+    //Trace file for new sessions, or null when we aren't recording.
+    static volatile File tracefile = null;
+
+    static final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(4096);
+    static Thread writer = null;
+    static volatile long dropped = 0;
+
+    NfcRF430Transport inner;
+    File file;
+    long last; //Start of the previous record, in System.nanoTime().
+
+    //One entry in the queue, encoded later by the writer thread.
+    static class Record {
+        File file;
+        char kind;
+        long delta, duration;
+        byte[] request, reply;
+        String message;
+        CountDownLatch flushed; //Only set for flush markers.
+    }
+
+    NfcRF430TraceRecorder(byte[] tagid, NfcRF430Transport inner, File file) {
+        this.inner = inner;
+        this.file = file;
+        last = System.nanoTime();
+
+        Record r = new Record();
+        r.kind = 'S';
+        r.delta = System.currentTimeMillis();
+        r.request = tagid.clone();
+        enqueue(r);
+    }
+
+    //! Starts recording new sessions to a file, or stops recording if file is null.
+    public static void setTraceFile(File file) {
+        tracefile = file;
+    }
+
+    public static File getTraceFile() {
+        return tracefile;
+    }
+
+    //! Returns a recording transport around inner if we're recording, or inner itself if not.
+    public static NfcRF430Transport wrap(byte[] tagid, NfcRF430Transport inner) {
+        File file = tracefile;
+        return file == null ? inner : new NfcRF430TraceRecorder(tagid, inner, file);
+    }
+
+    //! Number of records lost because the writer couldn't keep up.
+    public static long getDropped() {
+        return dropped;
+    }
+
+    //! Blocks until everything queued so far is on disk.
+    public static void flush() throws InterruptedException {
+        Record r = new Record();
+        r.flushed = new CountDownLatch(1);
+        startWriter();
+        queue.put(r);
+        r.flushed.await();
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        long start = System.nanoTime();
+        Record r = new Record();
+        r.request = Arrays.copyOf(data, data.length); //NfcRF430 will reuse its frame.
+        try {
+            r.reply = inner.transceive(data);
+            r.kind = 'F';
+            return r.reply;
+        } catch (TagLostException e) {
+            r.kind = 'L';
+            throw e;
+        } catch (IOException e) {
+            r.kind = 'E';
+            r.message = String.valueOf(e.getMessage());
+            throw e;
+        } finally {
+            r.duration = System.nanoTime() - start;
+            r.delta = start - last;
+            last = start;
+            if (r.kind != 0) //Unchecked exceptions aren't part of the protocol.
+                enqueue(r);
+        }
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mark('C');
+        inner.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mark('Z');
+        inner.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return inner.isConnected();
+    }
+
+    void mark(char kind) {
+        long now = System.nanoTime();
+        Record r = new Record();
+        r.kind = kind;
+        r.delta = now - last;
+        last = now;
+        enqueue(r);
+    }
+
+    void enqueue(Record r) {
+        r.file = file;
+        startWriter();
+        if (!queue.offer(r) && dropped++ == 0)
+            Log.w("GoodV", "Trace writer fell behind, dropping records.");
+    }
+
+    static synchronized void startWriter() {
+        if (writer != null)
+            return;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "GoodV trace writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static void writeLoop() {
+        File current = null;
+        DataOutputStream out = null;
+        while (true) {
+            Record r = null;
+            try {
+                r = queue.take();
+                if (r.flushed == null && r.file != current) {
+                    if (out != null)
+                        out.close();
+                    current = r.file;
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(current, true)));
+                }
+                if (r.flushed == null)
+                    write(out, r);
+
+                //Flush whenever we catch up, so a crash loses little.
+                if (queue.isEmpty() && out != null)
+                    out.flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.e("GoodV", "Trace writer failed: " + e.getMessage());
+                current = null;
+                out = null;
+            } finally {
+                if (r != null && r.flushed != null)
+                    r.flushed.countDown();
+            }
+        }
+    }
+
+    static void write(DataOutputStream out, Record r) throws IOException {
+        out.writeByte(r.kind);
+        if (r.kind == 'S') {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(r.delta);
+            out.writeByte(r.request.length);
+            out.write(r.request);
+            return;
+        }
+        writeVarint(out, r.delta);
+        if (r.kind == 'C' || r.kind == 'Z')
+            return;
+
+        writeVarint(out, r.duration);
+        writeVarint(out, r.request.length);
+        out.write(r.request);
+        if (r.kind == 'F') {
+            writeVarint(out, r.reply.length);
+            out.write(r.reply);
+        } else if (r.kind == 'E') {
+            out.writeUTF(r.message);
+        }
+    }
+
+    static void writeVarint(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Bad varint in trace.");
+    }
+}
@@ -0,0 +1,212 @@
+package com.kk4vcz.goodv;
+
+import android.nfc.TagLostException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* This plays back one session recorded by NfcRF430TraceRecorder, standing in for the tag that
+   was recorded.  Load a trace file, pick a session, and give it to NfcRF430.get() along with
+   its UID.  Replies come either at the speed of the original tag or as fast as we can go.
+
+   By default the replay is strict:  every request must match the recorded one, so a failure
+   in the field reproduces exactly, and any divergence throws an IOException naming the frame.
+   For comparing an optimization against a real session, which will send different frames,
+   setStrict(false) answers each request with the next unused recorded reply to the same
+   request, or with the fallback transport if the trace never saw it.
+ */
+
+public class NfcRF430TraceReplay implements NfcRF430Transport {
+    //A recorded exchange.
+    static class Frame {
+        char kind;
+        long duration;
+        byte[] request, reply;
+        String message;
+        boolean used;
+    }
+
+    byte[] tagid;
+    long wallclock;
+    ArrayList<Frame> frames = new ArrayList<Frame>();
+    int next = 0;
+    boolean realtime = false;
+    boolean strict = true;
+    boolean connected = false;
+    NfcRF430Transport fallback = null;
+
+    //! Loads every session in a trace file.
+    public static List<NfcRF430TraceReplay> load(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    //! Loads every session in a trace.
+    public static List<NfcRF430TraceReplay> load(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        ArrayList<NfcRF430TraceReplay> sessions = new ArrayList<NfcRF430TraceReplay>();
+        NfcRF430TraceReplay session = null;
+
+        while (true) {
+            int kind;
+            try {
+                kind = in.readUnsignedByte();
+            } catch (EOFException e) {
+                return sessions;
+            }
+
+            if (kind == 'S') {
+                if (in.readInt() != NfcRF430TraceRecorder.MAGIC
+                        || in.readUnsignedByte() != NfcRF430TraceRecorder.VERSION)
+                    throw new IOException("Not a GoodV trace.");
+                session = new NfcRF430TraceReplay();
+                session.wallclock = in.readLong();
+                session.tagid = new byte[in.readUnsignedByte()];
+                in.readFully(session.tagid);
+                sessions.add(session);
+                continue;
+            }
+            if (session == null)
+                throw new IOException("Trace doesn't begin with a session.");
+
+            NfcRF430TraceRecorder.readVarint(in); //Time since the last record, unused for now.
+            if (kind == 'C' || kind == 'Z')
+                continue;
+            if (kind != 'F' && kind != 'L' && kind != 'E')
+                throw new IOException("Unknown record '" + (char) kind + "' in trace.");
+
+            Frame f = new Frame();
+            f.kind = (char) kind;
+            f.duration = NfcRF430TraceRecorder.readVarint(in);
+            f.request = new byte[(int) NfcRF430TraceRecorder.readVarint(in)];
+            in.readFully(f.request);
+            if (kind == 'F') {
+                f.reply = new byte[(int) NfcRF430TraceRecorder.readVarint(in)];
+                in.readFully(f.reply);
+            } else if (kind == 'E') {
+                f.message = in.readUTF();
+            }
+            session.frames.add(f);
+        }
+    }
+
+    //! UID of the recorded tag, for NfcRF430.get().
+    public byte[] getTagId() {
+        return tagid;
+    }
+
+    //! Wall clock time of the tap, in milliseconds since the epoch.
+    public long getWallClock() {
+        return wallclock;
+    }
+
+    //! Number of recorded exchanges.
+    public int size() {
+        return frames.size();
+    }
+
+    //! Waits as long as the original tag took for each reply.
+    public void setRealtime(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    //! Requires requests to match the recording, one for one.
+    public void setStrict(boolean strict) {
+        this.strict = strict;
+    }
+
+    //! Answers requests that were never recorded, when not strict.
+    public void setFallback(NfcRF430Transport fallback) {
+        this.fallback = fallback;
+    }
+
+    //! Starts the session over.
+    public void rewind() {
+        next = 0;
+        for (Frame f : frames)
+            f.used = false;
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        Frame f = strict ? nextFrame(data) : matchingFrame(data);
+        if (f == null)
+            return fallback.transceive(data);
+        f.used = true;
+
+        if (realtime && f.duration > 0) {
+            try {
+                Thread.sleep(f.duration / 1000000, (int) (f.duration % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted during replay.");
+            }
+        }
+
+        switch (f.kind) {
+            case 'L':
+                throw new TagLostException("Tag was lost.");
+            case 'E':
+                throw new IOException(f.message);
+            default:
+                return f.reply.clone();
+        }
+    }
+
+    Frame nextFrame(byte[] data) throws IOException {
+        if (next >= frames.size())
+            throw new IOException("Replay ran out after " + next + " frames.");
+        Frame f = frames.get(next);
+        if (!Arrays.equals(f.request, data))
+            throw new IOException("Replay diverged at frame " + next + ": expected "
+                    + GoodVUtil.byteArrayToHex(f.request) + ", got " + GoodVUtil.byteArrayToHex(data));
+        next++;
+        return f;
+    }
+
+    Frame matchingFrame(byte[] data) throws IOException {
+        //The next unused match, or else the last match of all, since tags rarely change.
+        Frame match = null;
+        for (Frame f : frames) {
+            if (Arrays.equals(f.request, data)) {
+                match = f;
+                if (!f.used)
+                    break;
+            }
+        }
+        if (match == null && fallback == null)
+            throw new IOException("Replay never saw " + GoodVUtil.byteArrayToHex(data));
+        return match;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        connected = true;
+        if (fallback != null)
+            fallback.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connected = false;
+        if (fallback != null)
+            fallback.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+}
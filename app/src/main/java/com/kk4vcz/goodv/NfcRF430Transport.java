@@ -0,0 +1,19 @@
+package com.kk4vcz.goodv;
+
+import java.io.IOException;
+
+/* Everything that NfcRF430 says to a tag goes through one of these.  On a phone, that's
+   NfcVTransport wrapping Android's NfcV class, but a simulator or a recording can stand in
+   for the tag, so that the higher layers can be tested and measured without any radio.
+ */
+
+public interface NfcRF430Transport {
+    //! Sends one request frame and returns the reply, starting with the flags byte.
+    byte[] transceive(byte[] data) throws IOException;
+
+    void connect() throws IOException;
+
+    void close() throws IOException;
+
+    boolean isConnected();
+}
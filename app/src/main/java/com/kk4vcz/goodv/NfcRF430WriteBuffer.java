@@ -0,0 +1,155 @@
+package com.kk4vcz.goodv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* Every small write() that doesn't cover whole blocks costs a read and a write of each block
+   it touches, and a handful of them in the same neighborhood, like those of erase(), pay that
+   price again and again.  This buffer collects writes byte by byte and only touches the tag on
+   flush(), when every dirty block is written exactly once.
+
+   Bytes are kept in 8-byte chunks with a mask of those that were written, which fits either
+   block length, so a change of F867 before the flush doesn't confuse us.  Blocks that weren't
+   entirely written are first filled in from the tag, all of them through one NfcRF430ReadPlan.
+   Then blocks are written in runs of neighbors, the current page before the other page, so a
+   4-byte FRL flips at most once.
+
+   F867 isn't memory but the control register, which changes the block length and page, so a
+   write to it is held back and sent after everything else, just as the last write of erase()
+   always was.  Only its last value is sent.
+ */
+
+public class NfcRF430WriteBuffer {
+    NfcRF430 tag;
+    TreeMap<Integer, Chunk> chunks = new TreeMap<Integer, Chunk>();
+    int control = -1; //Pending value of F867, or -1.
+
+    //Eight bytes at an aligned address, and a mask of those that were written.
+    static class Chunk {
+        final byte[] data = new byte[8];
+        int mask = 0;
+    }
+
+    //One dirty block, as it will be written.
+    static class Block {
+        int adr;
+        byte[] data;
+        int mask;
+        NfcRF430ReadPlan.Request fill;
+    }
+
+    public NfcRF430WriteBuffer(NfcRF430 tag) {
+        this.tag = tag;
+    }
+
+    //! Buffers a write of data to adr.
+    public void write(int adr, byte[] data) {
+        write(adr, data, 0, data.length);
+    }
+
+    //! Buffers a write of len bytes from data at off to adr.  Later writes win.
+    public void write(int adr, byte[] data, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            int a = adr + i;
+            if (a == 0xf867 && tag.controlregister) {
+                control = data[off + i] & 0xFF;
+                continue;
+            }
+            Chunk chunk = chunks.get(a & ~7);
+            if (chunk == null) {
+                chunk = new Chunk();
+                chunks.put(a & ~7, chunk);
+            }
+            chunk.data[a & 7] = data[off + i];
+            chunk.mask |= 1 << (a & 7);
+        }
+    }
+
+    //! True when nothing is waiting to be written.
+    public boolean isEmpty() {
+        return chunks.isEmpty() && control == -1;
+    }
+
+    //! Forgets everything that hasn't been flushed.
+    public void clear() {
+        chunks.clear();
+        control = -1;
+    }
+
+    //! Writes every dirty block once, then F867.  On failure the buffer is kept for a retry.
+    public boolean flush() throws IOException {
+        int blocklen = tag.blocklen;
+        int full = (1 << blocklen) - 1;
+
+        //Split the chunks into blocks of the current length, and fill in the partial ones.
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        NfcRF430ReadPlan plan = new NfcRF430ReadPlan(tag);
+        for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) {
+            Chunk chunk = entry.getValue();
+            for (int h = 0; h < 8; h += blocklen) {
+                int mask = (chunk.mask >> h) & full;
+                if (mask == 0)
+                    continue;
+                Block b = new Block();
+                b.adr = entry.getKey() + h;
+                b.data = new byte[blocklen];
+                b.mask = mask;
+                System.arraycopy(chunk.data, h, b.data, 0, blocklen);
+                if (mask != full)
+                    b.fill = plan.add(b.adr, blocklen);
+                blocks.add(b);
+            }
+        }
+        if (plan.size() > 0 && !plan.run())
+            return false;
+        for (Block b : blocks) {
+            if (b.fill == null)
+                continue;
+            byte[] old = b.fill.getData();
+            for (int i = 0; i < blocklen; i++)
+                if ((b.mask & (1 << i)) == 0)
+                    b.data[i] = old[i];
+        }
+
+        //The current page first, then the other, each in address order.
+        Collections.sort(blocks, new Comparator<Block>() {
+            @Override
+            public int compare(Block a, Block b) {
+                int ra = rank(a.adr), rb = rank(b.adr);
+                return ra != rb ? ra - rb : a.adr - b.adr;
+            }
+        });
+
+        //Neighbors are written together, so write() can group them into multi-block frames.
+        for (int i = 0; i < blocks.size(); ) {
+            int j = i + 1;
+            while (j < blocks.size() && blocks.get(j).adr == blocks.get(j - 1).adr + blocklen
+                    && rank(blocks.get(j).adr) == rank(blocks.get(i).adr))
+                j++;
+            byte[] run = new byte[(j - i) * blocklen];
+            for (int k = i; k < j; k++)
+                System.arraycopy(blocks.get(k).data, 0, run, (k - i) * blocklen, blocklen);
+            if (!tag.write(blocks.get(i).adr, run))
+                return false;
+            i = j;
+        }
+
+        if (control != -1 && !tag.write(0xf867, new byte[]{(byte) control}))
+            return false;
+
+        clear();
+        return true;
+    }
+
+    //! Order of writes:  memory without pages, then the current page, then the other page.
+    int rank(int adr) {
+        int space = tag.readSpace(adr);
+        if (space == NfcRF430.SPACE_FRAM0 || space == NfcRF430.SPACE_FRAM1)
+            return tag.pageForAdr(adr) == tag.page ? 0x100 : 0x101;
+        return space;
+    }
+}
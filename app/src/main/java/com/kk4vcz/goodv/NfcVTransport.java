@@ -0,0 +1,35 @@
+package com.kk4vcz.goodv;
+
+import android.nfc.tech.NfcV;
+
+import java.io.IOException;
+
+/* The real transport, talking to a tag over Android's NfcV class. */
+
+public class NfcVTransport implements NfcRF430Transport {
+    NfcV nfcv;
+
+    public NfcVTransport(NfcV nfcv) {
+        this.nfcv = nfcv;
+    }
+
+    @Override
+    public byte[] transceive(byte[] data) throws IOException {
+        return nfcv.transceive(data);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        nfcv.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        nfcv.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return nfcv.isConnected();
+    }
+}
@@ -1,40 +1,132 @@
 package com.kk4vcz.goodv;
 
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
 public class ProgramFragment extends Fragment implements NfcRF430Handler{
+    static final int PICK_FILE = 1;
+
     EditText programtext;
     Button programbutton;
+    Button programload;
+    CheckBox programdiff;
+    Uri programfile = null; //Images too big for the EditText are streamed from here instead.
+    Handler ui = new Handler(Looper.getMainLooper());
+
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState){
         View v=inflater.inflate(R.layout.fragment_program, container, false);
 
         programtext=v.findViewById(R.id.program_text);
         programbutton=v.findViewById(R.id.program_button);
+        programdiff=v.findViewById(R.id.program_diff);
+        programload=v.findViewById(R.id.program_load);
+        programload.setOnClickListener(new View.OnClickListener(){
+            @Override
+            public void onClick(View view){
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                startActivityForResult(intent, PICK_FILE);
+            }
+        });
 
         return v;
     }
 
     @Override
-    public void tagTapped(NfcRF430 tag) {
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == PICK_FILE && resultCode == Activity.RESULT_OK && data != null) {
+            programfile = data.getData();
+            programtext.setText("Tap to write " + programfile.getLastPathSegment());
+            programtext.setEnabled(false);
+        }
+    }
 
+    @Override
+    public void tagTapped(final NfcRF430 tag) {
         Log.d("GoodV", "Tag tapped to program.");
-        try {
-            if(tag.writeTITXT(programtext.getText().toString()))
-                programbutton.setText("Programmed successfully!");
-            else
-                programbutton.setText("Programming error. :(");
-        }catch(Exception e){
-            e.printStackTrace();
-            programbutton.setText("IOException.");
-        }
+        programbutton.setText("Programming, hold the tag still.");
+        final boolean diff = programdiff.isChecked();
+        final Uri file = programfile;
+        final String text = programtext.getText().toString();
+        final ContentResolver resolver = getContext().getContentResolver();
 
+        /* The image is parsed and written on the tag thread.  Then the verify is queued from the
+           write's stage, which keeps the tag's session open for it, so it's the same tap.
+         */
+        final TITXTImage[] image = new TITXTImage[1];
+        NfcRF430Async.submit(tag, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException, ParseException {
+                //The whole image is parsed before we send a single frame.
+                Reader in = file != null
+                        ? new InputStreamReader(resolver.openInputStream(file), "US-ASCII")
+                        : new StringReader(text);
+                try {
+                    image[0] = TITXTImage.parse(in);
+                } finally {
+                    in.close();
+                }
+                tag.setDiffProgramming(diff);
+                return tag.writeImage(image[0]);
+            }
+        }).thenCompose(new Function<Boolean, CompletionStage<String>>() {
+            @Override
+            public CompletionStage<String> apply(Boolean written) {
+                if (!written)
+                    return CompletableFuture.completedFuture("Programming error. :(");
+                return NfcRF430Async.submit(tag, new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        if (!tag.verifyImage(image[0]))
+                            return "Programmed, but the verify failed. :(";
+                        return diff
+                                ? "Programmed and verified! (" + tag.getSkippedBlocks() + " blocks unchanged)"
+                                : "Programmed and verified!";
+                    }
+                });
+            }
+        }).whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String result, Throwable e) {
+                if (e != null)
+                    Log.e("GoodV", "Programming failed.", NfcRF430Async.cause(e));
+                final String text = e == null ? result
+                        : NfcRF430Async.cause(e) instanceof ParseException ? "Bad TI-TXT file." : "IOException.";
+                ui.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded())
+                            programbutton.setText(text);
+                    }
+                });
+            }
+        });
     }
 }
@@ -0,0 +1,170 @@
+package com.kk4vcz.goodv;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* This is a parsed TI-TXT image, as produced by the MSP430 toolchains and by our own dumps.
+
+   TI's TXT format is rather poorly defined, but in general each line should be either
+   (1) an address preceded by @, (2) a line of up to 16 bytes, or (3) the letter q, which
+   ends the document.  We also accept the letter x, which calls shellcode at the address of
+   the current section.
+
+   The parser reads one character at a time from a Reader, so an image never needs to fit in
+   a String, and it keeps only the bytes that are actually present.  When a new @ section
+   begins exactly where the previous one ended, the two are merged into a single segment so
+   that they can be written as one range.  The whole image is checked before we return it, so
+   a typo near the end won't leave a tag half programmed.
+ */
+
+public class TITXTImage {
+    //One contiguous run of bytes, or a call to shellcode if exec is set.
+    public static class Segment {
+        public final int adr;
+        public final boolean exec;
+        byte[] data = new byte[16];
+        int len = 0;
+
+        Segment(int adr, boolean exec) {
+            this.adr = adr;
+            this.exec = exec;
+        }
+
+        void append(byte b) {
+            if (len == data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+            data[len++] = b;
+        }
+
+        //! Address just past the end of the segment.
+        public int end() {
+            return adr + len;
+        }
+
+        //! Number of bytes in the segment.
+        public int length() {
+            return len;
+        }
+
+        //! Returns the bytes of the segment, without any spare capacity.
+        public byte[] getData() {
+            if (data.length != len)
+                data = Arrays.copyOf(data, len);
+            return data;
+        }
+    }
+
+    ArrayList<Segment> segments = new ArrayList<Segment>();
+
+    //! Segments and shellcode calls, in the order they appear.
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    //! Total number of data bytes in the image.
+    public int size() {
+        int total = 0;
+        for (Segment s : segments)
+            total += s.len;
+        return total;
+    }
+
+    public static TITXTImage parse(String txt) throws ParseException {
+        try {
+            return parse(new StringReader(txt));
+        } catch (IOException e) {
+            //StringReader never throws.
+            throw new ParseException(e.getMessage(), 0);
+        }
+    }
+
+    public static TITXTImage parse(InputStream in) throws IOException, ParseException {
+        return parse(new InputStreamReader(in, Charset.forName("US-ASCII")));
+    }
+
+    //! Parses a complete image, throwing ParseException with the line number of any mistake.
+    public static TITXTImage parse(Reader reader) throws IOException, ParseException {
+        BufferedReader in = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader);
+        TITXTImage image = new TITXTImage();
+        Segment current = null;
+        int section = 0; //Address of the latest @, which is where shellcode is called.
+        int line = 1;
+
+        //Each word is gathered here, and it's never more than @FFFF long.
+        char[] word = new char[5];
+        int wordlen = 0;
+
+        int c;
+        do {
+            c = in.read();
+
+            if (c != -1 && !Character.isWhitespace(c)) {
+                if (wordlen == word.length)
+                    throw new ParseException("Word too long on line " + line, line);
+                word[wordlen++] = (char) c;
+                continue;
+            }
+
+            //We have a complete word, or just more whitespace.
+            if (wordlen == 2 && word[0] != '@') {
+                int hi = GoodVUtil.hexValue(word[0]), lo = GoodVUtil.hexValue(word[1]);
+                if (hi < 0 || lo < 0)
+                    throw new ParseException("Bad byte '" + new String(word, 0, 2) + "' on line " + line, line);
+                if (current == null)
+                    throw new ParseException("Data without an @address on line " + line, line);
+                if (current.end() > 0xFFFF)
+                    throw new ParseException("Data beyond 0xFFFF on line " + line, line);
+                current.append((byte) ((hi << 4) | lo));
+            } else if (wordlen == 1 && (word[0] == 'x' || word[0] == 'X')) {
+                if (current == null)
+                    throw new ParseException("Shellcode call without an @address on line " + line, line);
+                //Everything before the call is written first, then we continue after it.
+                image.add(current);
+                image.segments.add(new Segment(section, true));
+                current = new Segment(current.end(), false);
+            } else if (wordlen == 1 && (word[0] == 'q' || word[0] == 'Q')) {
+                image.add(current);
+                return image;
+            } else if (wordlen > 1 && word[0] == '@') {
+                int adr = 0;
+                for (int i = 1; i < wordlen; i++) {
+                    int digit = GoodVUtil.hexValue(word[i]);
+                    if (digit < 0)
+                        throw new ParseException("Bad address '" + new String(word, 0, wordlen) + "' on line " + line, line);
+                    adr = (adr << 4) | digit;
+                }
+
+                //Adjacent sections become one segment.
+                section = adr;
+                if (current == null || current.end() != adr || current.len == 0) {
+                    image.add(current);
+                    current = new Segment(adr, false);
+                }
+            } else if (wordlen > 0) {
+                throw new ParseException("Unknown word '" + new String(word, 0, wordlen) + "' on line " + line, line);
+            }
+            wordlen = 0;
+
+            if (c == '\n')
+                line++;
+        } while (c != -1);
+
+        throw new ParseException("TI-TXT file doesn't end with q.", line);
+    }
+
+    //! Adds a finished segment, skipping empty ones.
+    void add(Segment s) {
+        if (s != null && (s.exec || s.len > 0))
+            segments.add(s);
+    }
+}
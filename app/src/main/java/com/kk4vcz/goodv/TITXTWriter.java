@@ -0,0 +1,130 @@
+package com.kk4vcz.goodv;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/* This writes TI-TXT incrementally, as blocks arrive from the tag, rather than building one
+   huge String at the end of a dump.  Digits come from a table instead of String.format(),
+   and the output can go to a StringBuilder, a Writer, or an OutputStream.
+
+   Each byte is written with its address, and a new @ section begins whenever the address
+   isn't the one just after the previous byte.  Optionally, runs of at least a line of erased
+   0xFF bytes are left out entirely, which makes dumps of mostly blank FRAM much shorter while
+   still loading back to the same image on an erased tag.
+
+   The output matches readTITXT() of old:
+
+   @f868
+   00 01 02 03 04 05 06 07 08 09 0a 0b 0c 0d 0e 0f
+   10 11
+   q
+ */
+
+public class TITXTWriter {
+    static final int LINE = 16; //Bytes per line, and the shortest run of 0xFF that we'll collapse.
+
+    Appendable out;
+    boolean collapse;
+
+    boolean started = false; //True once anything has been written.
+    boolean open = false;    //True while a section is open.
+    int next = 0;            //Address that would continue the open section.
+    int column = 0;          //Bytes on the current line.
+
+    int erasedadr = 0;       //Start of a run of 0xFF that we're holding back.
+    int erasedlen = 0;       //Length of that run.
+
+    public TITXTWriter(Appendable out) {
+        this(out, false);
+    }
+
+    public TITXTWriter(Appendable out, boolean collapseErased) {
+        this.out = out;
+        this.collapse = collapseErased;
+    }
+
+    public TITXTWriter(OutputStream out, boolean collapseErased) {
+        this(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII)), collapseErased);
+    }
+
+    //! Writes len bytes of data that were found at adr.
+    public void write(int adr, byte[] data, int off, int len) throws IOException {
+        for (int i = 0; i < len; i++)
+            write(adr + i, data[off + i]);
+    }
+
+    //! Writes a single byte that was found at adr.
+    public void write(int adr, byte b) throws IOException {
+        if (collapse) {
+            //A gap ends any run that we were holding.
+            if (erasedlen > 0 && adr != erasedadr + erasedlen)
+                flushErased();
+
+            if (b == (byte) 0xFF) {
+                if (erasedlen == 0)
+                    erasedadr = adr;
+                erasedlen++;
+                return;
+            }
+            flushErased();
+        }
+        emit(adr, b);
+    }
+
+    //! Ends the current section, so that the next byte begins a new one even if contiguous.
+    public void endSection() throws IOException {
+        flushErased();
+        open = false;
+    }
+
+    //! Ends the file with a q, and flushes the output if it can be flushed.
+    public void end() throws IOException {
+        endSection();
+        if (started)
+            out.append('\n');
+        out.append('q');
+        flush();
+    }
+
+    public void flush() throws IOException {
+        if (out instanceof Flushable)
+            ((Flushable) out).flush();
+    }
+
+    //! Either writes or drops the held run of 0xFF bytes.
+    void flushErased() throws IOException {
+        if (erasedlen == 0)
+            return;
+
+        int adr = erasedadr, len = erasedlen;
+        erasedlen = 0;
+        if (len >= LINE) {
+            //Dropped, so whatever follows needs a new address.
+            open = false;
+            return;
+        }
+        for (int i = 0; i < len; i++)
+            emit(adr + i, (byte) 0xFF);
+    }
+
+    void emit(int adr, byte b) throws IOException {
+        if (!open || adr != next) {
+            if (started)
+                out.append('\n');
+            out.append('@');
+            GoodVUtil.appendHex(out, (byte) (adr >> 8));
+            GoodVUtil.appendHex(out, (byte) adr);
+            started = open = true;
+            column = 0;
+        }
+
+        out.append(column % LINE == 0 ? '\n' : ' ');
+        GoodVUtil.appendHex(out, b);
+        column++;
+        next = adr + 1;
+    }
+}
@@ -0,0 +1,148 @@
+package com.kk4vcz.goodv;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the command pipeline, run against NfcRF430Simulator with no radio latency,
+ * so that they measure only our own overhead.  Run them with './gradlew :app:benchmark', and
+ * pass JMH options with -Pjmh="...", such as -Pjmh="-p variant=TAL read".
+ *
+ * Besides ops/s, the GC profiler reports allocations per operation as gc.alloc.rate.norm,
+ * and framesPerOp counts the RF frames that each operation would cost on a real tag.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NfcRF430Benchmark {
+    @Param({"FRL8", "FRL4", "TAL", "TAGIT", "ICODESLI"})
+    public String variant;
+
+    NfcRF430Simulator sim;
+    NfcRF430 tag;
+    int adr, len;  //The tag's FRAM, or whatever its user memory is called.
+    byte[] image;  //Random bytes to write.
+    String titxt;  //The same image as TI-TXT.
+
+    //RF frames per operation, reported next to the score.
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Frames {
+        long ops;
+        public double framesPerOp;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            ops = 0;
+            framesPerOp = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void connect() throws IOException {
+        if (variant.equals("FRL8") || variant.equals("FRL4")) {
+            sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+            sim.setF867(variant.equals("FRL8") ? 0x7F : 0x7E);
+        } else if (variant.equals("TAL")) {
+            sim = new NfcRF430Simulator(NfcRF430Simulator.TAL);
+        } else if (variant.equals("TAGIT")) {
+            sim = new NfcRF430Simulator(NfcRF430Simulator.TAGIT);
+        } else {
+            sim = new NfcRF430Simulator(NfcRF430Simulator.ICODESLI);
+        }
+
+        tag = NfcRF430.get(sim.getTagId(), sim);
+        tag.connect();
+
+        //In 4-byte mode, FRAM continues past the last block into the second page.
+        adr = tag.baseadr;
+        len = tag.paged() ? 0x10000 - adr : tag.blocklen * tag.blockcount;
+
+        image = new byte[len];
+        new Random(1).nextBytes(image);
+        StringBuilder txt = new StringBuilder();
+        TITXTWriter writer = new TITXTWriter(txt);
+        writer.write(adr, image, 0, len);
+        writer.end();
+        titxt = txt.toString();
+    }
+
+    @Setup(Level.Iteration)
+    public void resetFrames() {
+        sim.resetFrameCount();
+    }
+
+    void count(Frames frames) {
+        frames.ops++;
+        frames.framesPerOp = (double) sim.getFrameCount() / frames.ops;
+    }
+
+    @Benchmark
+    public byte[] read(Frames frames) throws IOException {
+        byte[] res = tag.read(adr, len);
+        count(frames);
+        return res;
+    }
+
+    @Benchmark
+    public boolean write(Frames frames) throws IOException {
+        boolean res = tag.write(adr, image);
+        count(frames);
+        return res;
+    }
+
+    @Benchmark
+    public String readTITXT(Frames frames) throws IOException {
+        String res = tag.readTITXT(adr, len);
+        count(frames);
+        return res;
+    }
+
+    @Benchmark
+    public boolean writeTITXT(Frames frames) throws IOException {
+        boolean res = tag.writeTITXT(titxt);
+        count(frames);
+        return res;
+    }
+
+    @Benchmark
+    public String dumpTITXT(Frames frames) throws IOException {
+        String res = tag.dumpTITXT();
+        count(frames);
+        return res;
+    }
+
+    public static void main(String[] args) throws Exception {
+        //Everything runs unless the arguments pick some benchmarks.
+        CommandLineOptions cmdline = new CommandLineOptions(args);
+        ChainedOptionsBuilder opt = new OptionsBuilder()
+                .parent(cmdline)
+                .addProfiler(GCProfiler.class);
+        if (cmdline.getIncludes().isEmpty())
+            opt.include(NfcRF430Benchmark.class.getSimpleName());
+        new Runner(opt.build()).run();
+    }
+}
@@ -0,0 +1,835 @@
+package com.kk4vcz.goodv;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs reads, writes and TI-TXT programming against the simulated tags, on the host.
+ */
+public class NfcRF430SimulatorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    //Connects to a simulated chip, with random FRAM and SRAM.
+    static NfcRF430 open(NfcRF430Simulator sim) throws Exception {
+        Random r = new Random(1);
+        byte[] fram = new byte[0x10000 - 0xF860], sram = new byte[0x1000 - 0x60];
+        r.nextBytes(fram);
+        r.nextBytes(sram);
+        System.arraycopy(fram, 0, sim.getMemory(), 0xF860, fram.length);
+        System.arraycopy(sram, 0, sim.getMemory(), 0x1C60, sram.length); //Past the hook at 1C5C.
+
+        NfcRF430 tag = NfcRF430.get(sim.getTagId(), sim);
+        tag.connect();
+        return tag;
+    }
+
+    static byte[] range(NfcRF430Simulator sim, int adr, int len) {
+        return Arrays.copyOfRange(sim.getMemory(), adr, adr + len);
+    }
+
+    //Random reads and writes in FRAM must match the simulator's memory.
+    static void readWrite(NfcRF430Simulator sim, int base) throws Exception {
+        NfcRF430 tag = open(sim);
+        Random r = new Random(2);
+
+        assertArrayEquals(range(sim, base, 0x10000 - base), tag.read(base, 0x10000 - base));
+        for (int i = 0; i < 100; i++) {
+            int adr = 0xF868 + r.nextInt(0x790);
+            int len = 1 + r.nextInt(Math.min(100, 0x10000 - adr));
+            assertArrayEquals(range(sim, adr, len), tag.read(adr, len));
+
+            byte[] data = new byte[len];
+            r.nextBytes(data);
+            byte[] expected = sim.getMemory().clone();
+            System.arraycopy(data, 0, expected, adr, len);
+            assertTrue(tag.write(adr, data));
+            assertArrayEquals(expected, sim.getMemory());
+        }
+        tag.close();
+    }
+
+    @Test
+    public void frl8_readWrite() throws Exception {
+        readWrite(new NfcRF430Simulator(NfcRF430Simulator.FRL), 0xF868);
+    }
+
+    @Test
+    public void frl4_readWrite() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        sim.setF867(0x7C); //4-byte blocks, starting in page 1.
+        readWrite(sim, 0xF868);
+
+        //Closing returns the tag to page 0.
+        assertEquals(0x7E, sim.getF867());
+    }
+
+    @Test
+    public void frl_singleBlock() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        sim.setMultiBlock(false);
+        readWrite(sim, 0xF868);
+    }
+
+    @Test
+    public void tal_readWrite() throws Exception {
+        readWrite(new NfcRF430Simulator(NfcRF430Simulator.TAL), 0xF860);
+    }
+
+    @Test
+    public void frl_sram() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        NfcRF430 tag = open(sim);
+        assertArrayEquals(range(sim, 0x1C00, 0x1000), tag.read(0x1C00, 0x1000));
+        assertArrayEquals(range(sim, 0x1C03, 13), tag.read(0x1C03, 13));
+    }
+
+    @Test
+    public void frl_f867() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        NfcRF430 tag = open(sim);
+        assertTrue(tag.write(0xF867, new byte[]{0x7E}));
+        assertEquals(0x7E, sim.getF867());
+        assertEquals(4, tag.blocklen);
+        assertEquals(0x7E, tag.read(0xF867, 1)[0]);
+    }
+
+    @Test
+    public void tal_backdoor() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.TAL);
+        NfcRF430 tag = open(sim);
+
+        //The A3 backdoor reads outside of FRAM too.
+        sim.getMemory()[0x4400] = 0x12;
+        assertEquals(0x12, tag.read(0x4400, 8)[0]);
+    }
+
+    @Test
+    public void frl_exec() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        NfcRF430 tag = open(sim);
+        sim.setRoutine(0x1D00, new NfcRF430Simulator.Routine() {
+            public byte[] call(NfcRF430Simulator sim) {
+                return new byte[]{0x00, 0x42};
+            }
+        });
+
+        assertArrayEquals(new byte[]{0x00, 0x42}, tag.exec(0x1D00));
+
+        //The original handler is restored afterward.
+        assertArrayEquals(new byte[]{(byte) 0xF6, 0x4F}, range(sim, 0x1C5C, 2));
+    }
+
+    @Test
+    public void frl_titxt() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        sim.setF867(0x7E);
+        NfcRF430 tag = open(sim);
+        String txt = "@f870\n01 02 03 04 05\n@fc30\n06 07 08 09 0a 0b\n@fff0\n0c\nq";
+
+        assertTrue(tag.writeTITXT(txt));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, range(sim, 0xF870, 5));
+        assertArrayEquals(new byte[]{6, 7, 8, 9, 10, 11}, range(sim, 0xFC30, 6));
+        assertEquals(12, sim.getMemory()[0xFFF0]);
+
+        //Programming the same image again writes nothing but the flip to page 1 for FC34.
+        tag.setDiffProgramming(true);
+        NfcRF430Metrics.reset();
+        assertTrue(tag.writeTITXT(txt));
+        assertEquals(5, tag.getSkippedBlocks());
+        assertEquals(1, NfcRF430Metrics.get("FRL", 0x21).frames.sum());
+        assertEquals(0, NfcRF430Metrics.get("FRL", 0x24).frames.sum());
+        assertEquals("@f870\n01 02 03 04 05", tag.readTITXT(0xF870, 5));
+
+        //Changing one byte writes only its block, on top of the page flip.
+        NfcRF430Metrics.reset();
+        assertTrue(tag.writeTITXT(txt.replace("0a 0b", "0a 0c")));
+        assertEquals(4, tag.getSkippedBlocks());
+        assertEquals(2, NfcRF430Metrics.get("FRL", 0x21).frames.sum());
+        assertEquals(0, NfcRF430Metrics.get("FRL", 0x24).frames.sum());
+        assertEquals(12, sim.getMemory()[0xFC35]);
+    }
+
+    @Test
+    public void icodeSli_read() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.ICODESLI);
+        NfcRF430 tag = open(sim);
+        assertEquals("NXPICODESLI", tag.variant);
+        assertArrayEquals(range(sim, 0, 0x40), tag.read(0, 0x40));
+    }
+
+    @Test
+    public void metrics_countFrames() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.TAL);
+        sim.setA3MaxWords(0x04);
+        NfcRF430 tag = open(sim);
+        NfcRF430Metrics.reset();
+        tag.read(0xF860, 0x40);
+
+        //Five failed probes, then eight blocks with 10-byte requests and 9-byte replies.
+        NfcRF430Metrics.Stats a3 = NfcRF430Metrics.get("GCM", 0xA3);
+        assertEquals(13, a3.frames.sum());
+        assertEquals(130, a3.bytesout.sum());
+        assertEquals(5 * 2 + 8 * 9, a3.bytesin.sum());
+        assertEquals(5, a3.errors.sum());
+        assertEquals(13, a3.latency.count());
+        assertTrue(NfcRF430Metrics.report().contains("GCM:\na3        13"));
+    }
+
+    @Test
+    public void tal_longA3() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.TAL);
+        NfcRF430TAL tag = (NfcRF430TAL) open(sim);
+        Random r = new Random(3);
+        r.nextBytes(sim.getMemory());
+
+        //One probe fails at 0x80 words and one works at 0x40, then the ROM takes 64 frames.
+        sim.resetFrameCount();
+        assertArrayEquals(range(sim, 0x4400, 0x2000), tag.read(0x4400, 0x2000));
+        assertEquals(0x40, tag.getA3MaxWords());
+        assertEquals(2 + 0x2000 / 0x80, sim.getFrameCount());
+
+        //Unaligned edges come along in the same frames.
+        for (int i = 0; i < 100; i++) {
+            int adr = 0x4400 + r.nextInt(0x1000), len = 1 + r.nextInt(0x300);
+            assertArrayEquals(range(sim, adr, len), tag.read(adr, len));
+        }
+    }
+
+    @Test
+    public void trace_recordAndReplay() throws Exception {
+        File file = File.createTempFile("goodv", ".trace");
+        file.deleteOnExit();
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        sim.setF867(0x7C);
+
+        //Record a session on the simulator.
+        NfcRF430TraceRecorder.setTraceFile(file);
+        NfcRF430 tag = NfcRF430.get(sim.getTagId(), NfcRF430TraceRecorder.wrap(sim.getTagId(), sim));
+        NfcRF430TraceRecorder.setTraceFile(null);
+        tag.connect();
+        byte[] fram = tag.read(0xF868, 0x798);
+        tag.close();
+        NfcRF430TraceRecorder.flush();
+
+        //Replaying the same calls gives the same answers without the simulator.
+        List<NfcRF430TraceReplay> sessions = NfcRF430TraceReplay.load(file);
+        assertEquals(1, sessions.size());
+        NfcRF430TraceReplay replay = sessions.get(0);
+        assertEquals(sim.getFrameCount(), replay.size());
+        tag = NfcRF430.get(replay.getTagId(), replay);
+        tag.connect();
+        assertArrayEquals(fram, tag.read(0xF868, 0x798));
+        tag.close();
+
+        //Different requests diverge when strict.
+        replay.rewind();
+        tag = NfcRF430.get(replay.getTagId(), replay);
+        tag.connect();
+        try {
+            tag.read(0xF900, 8);
+            fail("Replay should have diverged.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Replay diverged"));
+        }
+    }
+
+    @Test
+    public void cgm_incrementalScan() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.TAL);
+        NfcRF430TAL tag = (NfcRF430TAL) open(sim);
+        byte[] mem = sim.getMemory();
+        File dir = tmp.newFolder("cgm");
+
+        //100 minutes in, with trend slot 3 and history slot 6 next.
+        mem[0xF87A] = 3;
+        mem[0xF87B] = 6;
+        mem[0xF99C] = 100;
+        mem[0xF99D] = 0;
+        mem[0xF87C + 2 * 6] = 0x34; //Newest trend record.
+        mem[0xF87C + 2 * 6 + 1] = 0x12;
+
+        List<NfcRF430CGMDecoder.Record> records = new NfcRF430CGMDecoder(dir).scan(tag);
+        assertEquals(6 + 16, records.size());
+        NfcRF430CGMDecoder.Record newest = records.get(records.size() - 1);
+        assertEquals('T', newest.kind);
+        assertEquals(100, newest.minute);
+        assertEquals(0x1234, newest.glucose);
+        assertEquals(90, records.get(5).minute);
+
+        //Three minutes later, a fresh decoder only reads the three new trend slots.
+        mem[0xF87A] = 6;
+        mem[0xF99C] = 103;
+        mem[0xF87C + 5 * 6] = 0x42;
+        mem[0xF87C + 5 * 6 + 1] = 0x00;
+        sim.resetFrameCount();
+        records = new NfcRF430CGMDecoder(dir).scan(tag);
+        assertEquals(3, records.size());
+        assertEquals(103, records.get(2).minute);
+        assertEquals(0x42, records.get(2).glucose);
+        assertEquals(3, sim.getFrameCount());
+    }
+
+    @Test
+    public void info_snapshot() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        NfcRF430 tag = open(sim);
+        sim.getMemory()[0xFFFE] = 0x00;
+        sim.getMemory()[0xFFFF] = 0x44;
+        sim.getMemory()[0xFFD0] = 0x55;
+
+        //One system info, then the blocks of FFD0 and FFFE.
+        sim.resetFrameCount();
+        String info = tag.getInfo();
+        assertEquals(3, sim.getFrameCount());
+        assertTrue(info.contains("SERIAL:   e007a20000017a47\n"));
+        assertTrue(info.contains("JTAGLOCK: LOCKED\n"));
+        assertTrue(info.contains("RESET VEC:0044\n"));
+    }
+
+    @Test
+    public void readPlan_frl4() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        sim.setF867(0x7C); //4-byte blocks, starting in page 1.
+        NfcRF430 tag = open(sim);
+
+        //Scattered ranges in both pages, and one across the boundary.
+        int[][] ranges = {{0xF870, 3}, {0xFD00, 5}, {0xF878, 2}, {0xFE01, 1}, {0xFC30, 8}, {0xF900, 16}};
+        NfcRF430ReadPlan plan = new NfcRF430ReadPlan(tag);
+        NfcRF430ReadPlan.Request[] requests = new NfcRF430ReadPlan.Request[ranges.length];
+        for (int i = 0; i < ranges.length; i++)
+            requests[i] = plan.add(ranges[i][0], ranges[i][1]);
+
+        sim.resetFrameCount();
+        assertTrue(plan.run());
+        //Three runs in page 1, where we started, one flip, then three runs in page 0.
+        assertEquals(7, sim.getFrameCount());
+        for (int i = 0; i < ranges.length; i++)
+            assertArrayEquals(range(sim, ranges[i][0], ranges[i][1]), requests[i].getData());
+
+        tag.close();
+    }
+
+    @Test
+    public void async_chainAndCancel() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        NfcRF430 tag = open(sim);
+        NfcRF430Async async = new NfcRF430Async(tag);
+
+        //Operations queued together run in order.
+        byte[] data = {1, 2, 3, 4, 5};
+        async.writeAsync(0xF900, data);
+        assertArrayEquals(data, async.readAsync(0xF900, 5).get());
+
+        //Cancelling a running dump interrupts it, and cancelling a queued read skips it.
+        sim.setLatency(1000000);
+        CompletableFuture<String> dump = async.dumpAsync();
+        CompletableFuture<byte[]> skipped = async.readAsync(0xF900, 5);
+        Thread.sleep(50);
+        assertTrue(dump.cancel(true));
+        assertTrue(skipped.cancel(true));
+        sim.setLatency(0);
+
+        //The next operation isn't hurt by the interruption.
+        assertArrayEquals(data, async.readAsync(0xF900, 5).get());
+        assertTrue(dump.isCancelled());
+        tag.close();
+    }
+
+    @Test
+    public void dumpPipeline() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.TAL);
+        NfcRF430 tag = open(sim);
+        String expected = tag.dumpTITXT();
+
+        //The pipeline writes the same TI-TXT, and hashes the bytes it dumped.
+        NfcRF430DumpSession session = NfcRF430DumpSession.get(tag);
+        NfcRF430DumpPipeline pipeline = new NfcRF430DumpPipeline(session);
+        StringWriter out = new StringWriter();
+        assertTrue(pipeline.run(tag, out));
+        assertEquals(expected, out.toString());
+
+        CRC32 crc = new CRC32();
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        for (int[] region : tag.dumpRegions()) {
+            crc.update(range(sim, region[0], region[1]));
+            sha.update(range(sim, region[0], region[1]));
+        }
+        assertEquals(crc.getValue(), pipeline.getCRC32());
+        assertEquals(GoodVUtil.byteArrayToHex(sha.digest()), pipeline.getSHA256());
+        tag.close();
+    }
+
+    @Test
+    public void frl_rpc() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        NfcRF430FRL tag = (NfcRF430FRL) open(sim);
+
+        //Doubles each byte of the buffer.
+        final int[] calls = new int[1];
+        sim.setRoutine(0x1D42, new NfcRF430Simulator.Routine() {
+            public byte[] call(NfcRF430Simulator sim) {
+                byte[] mem = sim.getMemory();
+                for (int i = 0; i < 4; i++)
+                    mem[NfcRF430RPC.DEFAULT_BASE + 8 + i] *= 2;
+                calls[0]++;
+                return new byte[]{0x00, 0x42};
+            }
+        });
+
+        NfcRF430RPC rpc = tag.openRPC();
+        assertArrayEquals(new byte[]{0x10, 0x42, 0x04, 0x2A}, range(sim, NfcRF430RPC.DEFAULT_BASE, 4));
+
+        //Repeated calls to the same routine cost one frame each.
+        sim.resetFrameCount();
+        for (int i = 0; i < 3; i++)
+            assertArrayEquals(new byte[]{0x00, 0x42}, tag.exec(0x1D42));
+        assertEquals(3, calls[0]);
+        assertEquals(4, sim.getFrameCount()); //One write of the mailbox, then three calls.
+
+        //Arguments go in and results come out through the buffer.
+        byte[] ret = new byte[4];
+        rpc.call(0x1D42, new byte[]{1, 2, 3, 4}, ret);
+        assertArrayEquals(new byte[]{2, 4, 6, 8}, ret);
+
+        //The trampoline jumps to whichever routine is in the mailbox, switching when it changes.
+        sim.setRoutine(0x1D80, new NfcRF430Simulator.Routine() {
+            public byte[] call(NfcRF430Simulator sim) {
+                return new byte[]{0x00, (byte) 0x80};
+            }
+        });
+        sim.resetFrameCount();
+        assertArrayEquals(new byte[]{0x00, (byte) 0x80}, rpc.call(0x1D80));
+        assertArrayEquals(new byte[]{0x00, 0x42}, rpc.call(0x1D42));
+        assertArrayEquals(new byte[]{0x00, 0x42}, rpc.call(0x1D42));
+        assertEquals(2 + 2 + 1, sim.getFrameCount()); //Each switch writes the mailbox.
+        assertEquals(0x1D42, sim.u16(NfcRF430RPC.DEFAULT_BASE + 4));
+        assertEquals(NfcRF430RPC.DEFAULT_BASE, sim.u16(0x1C5C));
+        assertEquals(7, rpc.getCalls());
+
+        tag.close();
+        assertFalse(rpc.isOpen());
+        assertArrayEquals(new byte[]{(byte) 0xF6, 0x4F}, range(sim, 0x1C5C, 2));
+
+        //A CGM tag has no hook, so images with several calls never get a trampoline.
+        NfcRF430Simulator tal = new NfcRF430Simulator(NfcRF430Simulator.TAL);
+        NfcRF430TAL cgm = (NfcRF430TAL) open(tal);
+        byte[] sram = range(tal, 0x1C00, 0x1000);
+        try {
+            cgm.writeImage(TITXTImage.parse("@f900\n01 02\nx\n@f908\n03 04\nx\nq\n"));
+            fail("A CGM tag can't run shellcode.");
+        } catch (IOException e) {
+            //The image is written as usual up to the first call, which is what fails.
+            assertArrayEquals(new byte[]{1, 2}, range(tal, 0xF900, 2));
+            assertArrayEquals(sram, range(tal, 0x1C00, 0x1000));
+        }
+        cgm.close();
+    }
+
+    @Test
+    public void frl_bulkRead() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        NfcRF430FRL tag = (NfcRF430FRL) open(sim);
+
+        //Stands in for the copy routine, checking that it was uploaded intact.
+        final int buf = NfcRF430RPC.DEFAULT_BASE + 8;
+        sim.setRoutine(buf + 8, new NfcRF430Simulator.Routine() {
+            public byte[] call(NfcRF430Simulator sim) throws IOException {
+                byte[] code = NfcRF430BulkReader.routine(buf);
+                if (!Arrays.equals(code, range(sim, buf + 8, code.length)))
+                    throw new IOException("Routine was corrupted.");
+                int src = sim.u16(buf), count = sim.u16(buf + 2);
+                if (count < 1 || count + 1 > NfcRF430BulkReader.FIFO)
+                    throw new IOException("FIFO overflow.");
+                byte[] res = new byte[1 + count];
+                System.arraycopy(sim.getMemory(), src, res, 1, count);
+                sim.getMemory()[buf] = (byte) (src + count);
+                sim.getMemory()[buf + 1] = (byte) ((src + count) >> 8);
+                return res;
+            }
+        });
+
+        //Blocks of SRAM take a frame apiece without the engine.
+        sim.resetFrameCount();
+        assertArrayEquals(range(sim, 0x1D00, 0x200), tag.read(0x1D00, 0x200));
+        assertEquals(0x40, sim.getFrameCount());
+
+        //With it, each frame brings 31 bytes, after seven frames to install the routine and
+        //three to set its arguments, and two more to put the handler back.
+        tag.setBulkReads(true);
+        sim.resetFrameCount();
+        assertArrayEquals(range(sim, 0x1D00, 0x200), tag.read(0x1D00, 0x200));
+        assertEquals(7 + 3 + 17 + 2, sim.getFrameCount());
+
+        //So a C0 read out of range fails afterward, rather than calling the routine.
+        assertArrayEquals(new byte[]{(byte) 0xF6, 0x4F}, range(sim, 0x1C5C, 2));
+        assertArrayEquals(new byte[]{0x01, 0x10}, tag.trigger());
+
+        //A run of reads installs the routine just once, and later reads only set arguments.
+        tag.beginReads();
+        sim.resetFrameCount();
+        assertArrayEquals(range(sim, 0x1D00, 0x100), tag.read(0x1D00, 0x100));
+        assertArrayEquals(range(sim, 0x1E00, 0x100), tag.read(0x1E00, 0x100));
+        tag.endReads();
+        assertEquals(7 + (3 + 9) + (2 + 9) + 2, sim.getFrameCount());
+        assertArrayEquals(new byte[]{0x01, 0x10}, tag.trigger());
+
+        //A session of the caller's own stays open.
+        NfcRF430RPC rpc = tag.openRPC();
+        assertArrayEquals(range(sim, 0x1D00, 0x100), tag.read(0x1D00, 0x100));
+        assertTrue(rpc.isOpen());
+
+        tag.close();
+        assertArrayEquals(new byte[]{(byte) 0xF6, 0x4F}, range(sim, 0x1C5C, 2));
+
+        //ROM, which no block command can reach, goes through the engine without asking.
+        tag = (NfcRF430FRL) NfcRF430.get(sim.getTagId(), sim);
+        tag.connect();
+        sim.getMemory()[0x4400] = 0x31;
+        assertArrayEquals(range(sim, 0x4400, 0x100), tag.read(0x4400, 0x100));
+        assertEquals(0x31, tag.read(0x4400, 0x40)[0]);
+        tag.close();
+    }
+
+    @Test
+    public void writeBuffer_frl4() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        sim.setF867(0x7C); //4-byte blocks, starting in page 1.
+        NfcRF430 tag = open(sim);
+        byte[] expected = sim.getMemory().clone();
+
+        //Four writes to one block, a partial block in each page, and the control register.
+        NfcRF430WriteBuffer buffer = new NfcRF430WriteBuffer(tag);
+        buffer.write(0xF870, new byte[]{1});
+        buffer.write(0xF871, new byte[]{2});
+        buffer.write(0xF872, new byte[]{3, 4});
+        buffer.write(0xF870, new byte[]{5}); //Later writes win.
+        buffer.write(0xF881, new byte[]{6});
+        buffer.write(0xFFFE, new byte[]{7, 8});
+        buffer.write(0xF867, new byte[]{0x7F});
+        expected[0xF870] = 5;
+        expected[0xF871] = 2;
+        expected[0xF872] = 3;
+        expected[0xF873] = 4;
+        expected[0xF881] = 6;
+        expected[0xFFFE] = 7;
+        expected[0xFFFF] = 8;
+
+        /* The two fills read page 1, where we started, then flip to page 0.  Writes begin in
+           page 0, where we now are, with two blocks, then flip once for the block in page 1.
+           F867 goes last, for eight frames in all.
+         */
+        sim.resetFrameCount();
+        assertTrue(buffer.flush());
+        assertTrue(buffer.isEmpty());
+        assertArrayEquals(expected, sim.getMemory());
+        assertEquals(0x7F, sim.getF867());
+        assertEquals(8, tag.blocklen);
+        assertEquals(8, sim.getFrameCount());
+    }
+
+    @Test
+    public void frl_erase() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        sim.setF867(0x7E);
+        NfcRF430 tag = open(sim);
+        tag.erase();
+        assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xFF}, range(sim, 0xFFFE, 2));
+        assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xFF}, range(sim, 0xFFCE, 2));
+        assertEquals(0x7F, sim.getF867());
+    }
+
+    @Test
+    public void profile_skipsProbes() throws Exception {
+        File file = new File(tmp.getRoot(), "profiles.properties");
+        NfcRF430Profile.setFile(file);
+        try {
+            NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+            sim.setF867(0x7F);
+            byte[] uid = sim.getTagId();
+
+            //A cold tap reads F867 before the first block, and remembers it.
+            NfcRF430 tag = open(sim);
+            assertArrayEquals(range(sim, 0xF868, 8), tag.read(0xF868, 8));
+            assertEquals(2, sim.getFrameCount());
+            tag.close();
+            assertTrue(file.exists());
+
+            //A repeat tap goes straight to the block, whose reply confirms the block length.
+            NfcRF430Profile.setFile(file);
+            sim.resetFrameCount();
+            tag = open(sim);
+            assertEquals(0, sim.getFrameCount());
+            assertArrayEquals(range(sim, 0xF868, 8), tag.read(0xF868, 8));
+            assertEquals(1, sim.getFrameCount());
+            assertEquals(8, tag.blocklen);
+
+            //System info is only kept when something asks for it.
+            assertEquals(0, NfcRF430Profile.get(uid).rawinfo.length);
+            tag.getRawInfo();
+            assertArrayEquals(tag.getRawInfo(), NfcRF430Profile.get(uid).rawinfo);
+            tag.close();
+
+            //Later taps hand it out without a frame.
+            tag = open(sim);
+            sim.resetFrameCount();
+            assertArrayEquals(NfcRF430Profile.get(uid).rawinfo, tag.getRawInfo());
+            assertEquals(0, sim.getFrameCount());
+            tag.close();
+
+            //A tag switched to 4-byte blocks fails the first read, which then reads F867 and retries.
+            sim.setF867(0x7C);
+            sim.resetFrameCount();
+            tag = open(sim);
+            assertArrayEquals(range(sim, 0xFC34, 4), tag.read(0xFC34, 4));
+            assertEquals(3, sim.getFrameCount());
+            assertEquals(4, tag.blocklen);
+            assertEquals(0x7C, NfcRF430Profile.get(uid).f867);
+
+            //The remembered system info is for 8-byte blocks, so it's fetched again.
+            sim.resetFrameCount();
+            assertEquals(3, tag.getRawInfo()[11]);
+            assertEquals(1, sim.getFrameCount());
+            tag.close();
+
+            //Writes read F867 first, so they never trust an unchecked block length.
+            sim.setF867(0x7F);
+            NfcRF430Profile.put(open(sim));
+            tag = open(sim);
+            sim.resetFrameCount();
+            assertTrue(tag.write(0xF868, new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+            assertEquals(2, sim.getFrameCount());
+
+            //An ICODE SLI takes its size from the profile instead of the system info.
+            NfcRF430Simulator sli = new NfcRF430Simulator(NfcRF430Simulator.ICODESLI);
+            NfcRF430 icode = open(sli);
+            assertEquals(1, sli.getFrameCount());
+            int blockcount = icode.blockcount;
+            sli.resetFrameCount();
+            icode = open(sli);
+            assertEquals(0, sli.getFrameCount());
+            assertEquals(blockcount, icode.blockcount);
+
+            //A TAL remembers its A3 length, and skips the probes next time.
+            NfcRF430Simulator tal = new NfcRF430Simulator(NfcRF430Simulator.TAL);
+            NfcRF430TAL t = (NfcRF430TAL) open(tal);
+            assertEquals(0x40, t.getA3MaxWords());
+            t.close();
+            t = (NfcRF430TAL) open(tal);
+            tal.resetFrameCount();
+            assertArrayEquals(range(tal, 0x4400, 0x800), t.read(0x4400, 0x800));
+            assertEquals(0x800 / 0x80, tal.getFrameCount());
+        } finally {
+            NfcRF430Profile.setFile(null);
+        }
+    }
+
+    @Test
+    public void session_chainsOnOneConnection() throws Exception {
+        //Without polling, the session closes as soon as its queue drains.
+        NfcRF430Session.setPollInterval(0);
+        try {
+            NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+            sim.setF867(0x7C);
+            final NfcRF430 tag = open(sim);
+            final NfcRF430Session session = NfcRF430Session.open(tag);
+            NfcRF430Async async = new NfcRF430Async(tag);
+            final byte[] data = {1, 2, 3, 4};
+
+            //A write to page 1 is followed by a read queued from its stage, on the same page.
+            CompletableFuture<byte[]> verify = async.writeAsync(0xFD00, data).thenCompose(
+                    new Function<Void, CompletableFuture<byte[]>>() {
+                        @Override
+                        public CompletableFuture<byte[]> apply(Void nothing) {
+                            assertEquals(1, tag.page);
+                            return new NfcRF430Async(tag).readAsync(0xFD00, 4);
+                        }
+                    });
+            session.release();
+            assertArrayEquals(data, verify.get());
+            NfcRF430Executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+
+            //Once the queue drained, the tag went back to page 0 and closed.
+            assertFalse(session.isOpen());
+            assertFalse(sim.isConnected());
+            assertEquals(0x7E, sim.getF867());
+            assertNull(NfcRF430Session.current());
+            try {
+                session.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        return null;
+                    }
+                }).get();
+                fail("A closed session shouldn't run anything.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            NfcRF430Session.setPollInterval(500);
+        }
+    }
+
+    //Waits for everything queued on the tag thread so far.
+    static void drain() throws Exception {
+        NfcRF430Executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    @Test
+    public void session_staysOpenUntilLost() throws Exception {
+        NfcRF430Session.setPollInterval(10);
+        try {
+            NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+            sim.setF867(0x7C);
+            final NfcRF430 tag = open(sim);
+            NfcRF430Session session = NfcRF430Session.open(tag);
+            session.release();
+
+            //An idle session only checks for its tag, so later work from any fragment shares the tap.
+            Thread.sleep(100);
+            assertTrue(session.isOpen());
+            assertSame(session, NfcRF430Session.current());
+            final byte[] data = {1, 2, 3, 4};
+            assertTrue(NfcRF430Session.current().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return tag.write(0xFD00, data);
+                }
+            }).get());
+            assertArrayEquals(data, new NfcRF430Async(tag).readAsync(0xFD00, 4).get());
+            assertEquals(1, tag.page);
+
+            //The sensor keeps logging while the session is open, so each operation sees fresh blocks.
+            tag.setCaching(true);
+            final Callable<byte[]> wear = new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return tag.read(0xFE00, 4);
+                }
+            };
+            assertEquals(sim.getMemory()[0xFE00], session.submit(wear).get()[0]);
+            sim.getMemory()[0xFE00]++;
+            assertEquals(sim.getMemory()[0xFE00], session.submit(wear).get()[0]);
+
+            //A dump gives up quietly on a lost tag, but the session still knows.
+            sim.setLostAfter(3);
+            assertFalse(NfcRF430Async.submit(tag, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return NfcRF430DumpSession.get(tag).resume(tag);
+                }
+            }).get());
+            assertTrue(session.isLost());
+            drain();
+            drain();
+            assertFalse(session.isOpen());
+            assertNull(NfcRF430Session.current());
+
+            //An idle tag that leaves the field is noticed by the next check.
+            tag.connect();
+            NfcRF430 again = NfcRF430.get(sim.getTagId(), sim);
+            again.connect();
+            session = NfcRF430Session.open(again);
+            session.release();
+            sim.setLostAfter(0);
+            for (int i = 0; i < 100 && session.isOpen(); i++)
+                Thread.sleep(10);
+            assertFalse(session.isOpen());
+            assertTrue(session.isLost());
+
+            //A tag that never connected fails its first check rather than killing the poll.
+            session = NfcRF430Session.open(NfcRF430.get(sim.getTagId(), sim));
+            session.release();
+            for (int i = 0; i < 100 && session.isOpen(); i++)
+                Thread.sleep(10);
+            assertFalse(session.isOpen());
+            assertTrue(session.isLost());
+            assertNull(NfcRF430Session.current());
+        } finally {
+            NfcRF430Session.setPollInterval(500);
+        }
+    }
+
+    @Test
+    public void scheduler_pageOrder() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        sim.setF867(0x7E);
+        NfcRF430 tag = open(sim);
+        byte[] a = {1, 2, 3, 4}, b = {5, 6, 7, 8};
+
+        NfcRF430Scheduler scheduler = new NfcRF430Scheduler(tag);
+        scheduler.write(0xFD00, a, 0, 4);
+        scheduler.write(0xF900, a, 0, 4);
+        scheduler.write(0xFD00, b, 0, 4);
+        scheduler.write(0xF910, b, 0, 4);
+        scheduler.write(0xF867, new byte[]{0x7C}, 0, 1);
+        scheduler.write(0xF920, a, 0, 4);
+        scheduler.write(0xFD20, b, 0, 4);
+        sim.resetFrameCount();
+        assertTrue(scheduler.run());
+
+        /* Page 0 first, then a flip and page 1, where the later write to FD00 wins.  F867 is a
+           barrier that leaves us on page 1, so FD20 goes before the flip back for F920.  That's
+           two flips instead of the six that the given order would cost.
+         */
+        assertEquals(2 + 1 + 2 + 1 + 1 + 1 + 1, sim.getFrameCount());
+        assertArrayEquals(b, range(sim, 0xFD00, 4));
+        assertArrayEquals(a, range(sim, 0xF900, 4));
+        assertArrayEquals(b, range(sim, 0xF910, 4));
+        assertArrayEquals(a, range(sim, 0xF920, 4));
+        assertArrayEquals(b, range(sim, 0xFD20, 4));
+        assertEquals(0, tag.page);
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void dumpSession_resume() throws Exception {
+        NfcRF430Simulator sim = new NfcRF430Simulator(NfcRF430Simulator.FRL);
+        NfcRF430 tag = open(sim);
+        String expected = tag.dumpTITXT();
+
+        //After F867, eight frames fill a chunk of FRAM, so the tag slips away in the third.
+        NfcRF430DumpSession session = NfcRF430DumpSession.get(tag);
+        sim.resetFrameCount();
+        sim.setLostAfter(1 + 8 + 8 + 3);
+        assertFalse(session.resume(tag));
+        assertEquals(1 + 2 * NfcRF430DumpSession.CHUNK, session.bytesDone());
+        assertEquals(1 + 0x798 + 0x1000, session.length());
+
+        /* The next tap fetches the third chunk again, the rest of FRAM with 0x98 bytes in five
+           frames at the end, and then SRAM a block at a time.
+         */
+        tag = NfcRF430.get(sim.getTagId(), sim);
+        tag.connect();
+        assertSame(session, NfcRF430DumpSession.get(tag));
+        sim.resetFrameCount();
+        assertTrue(session.resume(tag));
+        assertEquals(5 * 8 + 5 + 0x1000 / 8, sim.getFrameCount());
+        assertEquals(session.length(), session.bytesDone());
+        assertEquals(expected, session.toTITXT());
+    }
+}